@@ -51,7 +51,7 @@ stat:	lvalue ':=' messageExpression		# Assign
 	|	messageExpression					# SendMessage
 	;
 
-lvalue returns [VariableSymbol sym] // set sym to ID if assignment
+lvalue returns [VariableSymbol sym, VariableAddress addr] // set sym to ID if assignment
 	:	ID
 	;
 
@@ -101,7 +101,7 @@ primary
 	|	'(' messageExpression ')'
 	;
 
-id returns [Symbol sym] // could be class, field, arg ref etc...
+id returns [Symbol sym, VariableAddress addr] // could be class, field, arg ref etc...
 	:	ID
 	;
 
@@ -0,0 +1,181 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STCompiledBlock.ClosureKind;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Classify the blocks of a compiled method by what a VM must give them
+ *  when it creates them, looking at their bytecode so that inlined blocks
+ *  and the hidden variables of inlined loops are accounted for:
+ *
+ *  <ul>
+ *  <li>CLEAN blocks use no variable of an enclosing frame, no self or field
+ *  and no ^. A VM can create one per method and share it.</li>
+ *  <li>COPYING blocks have no ^ and only read enclosing variables that
+ *  nothing ever stores into, such as arguments, and self or fields. A VM
+ *  can copy those values into the block instead of keeping the enclosing
+ *  frame alive.</li>
+ *  <li>FULL blocks need the enclosing frames and, with ^, the home method.</li>
+ *  </ul>
+ *
+ *  A nested block's needs are its enclosing block's too. Run this on code
+ *  before {@link Superinstructions} fuses it.
+ */
+public class BlockClassifier {
+	/** A local variable of a frame, which is the method or one of its blocks */
+	protected static class Slot {
+		final STCompiledBlock frame;
+		final int index;
+
+		Slot(STCompiledBlock frame, int index) {
+			this.frame = frame;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Slot && ((Slot)o).frame==frame && ((Slot)o).index==index;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(frame)*31 + index;
+		}
+	}
+
+	protected final STCompiledBlock method;
+	/** block -> frame whose code creates it */
+	protected final Map<STCompiledBlock,STCompiledBlock> parents = new IdentityHashMap<>();
+	/** Variables stored into anywhere in method */
+	protected final Set<Slot> stored = new HashSet<>();
+
+	public BlockClassifier(STCompiledBlock method) {
+		this.method = method;
+		for (STCompiledBlock frame : frames()) {
+			for (PeepholeOptimizer.Instr instr : PeepholeOptimizer.decode(code(frame))) {
+				if ( isBlock(instr.opcode) && instr.operands[0]<method.blocks.length ) {
+					parents.put(method.blocks[instr.operands[0]], frame);
+				}
+			}
+		}
+		for (STCompiledBlock frame : frames()) {
+			for (PeepholeOptimizer.Instr instr : PeepholeOptimizer.decode(code(frame))) {
+				if ( isStore(instr.opcode) ) stored.add(slot(frame, instr));
+			}
+		}
+	}
+
+	/** Set {@link STCompiledBlock#closureKind} of all blocks in method */
+	public static void classify(STCompiledBlock method) {
+		if ( method.blocks==null ) return;
+		BlockClassifier classifier = new BlockClassifier(method);
+		for (STCompiledBlock blk : method.blocks) {
+			blk.closureKind = classifier.kind(blk);
+		}
+	}
+
+	/** Does blk, whose nested blocks are in blocks, capture nothing? Only
+	 *  needs blk and its nested blocks compiled, not the rest of the method.
+	 */
+	public static boolean isClean(STCompiledBlock blk, STCompiledBlock[] blocks) {
+		return isClean(blk, blocks, 0);
+	}
+
+	protected static boolean isClean(STCompiledBlock frame, STCompiledBlock[] blocks, int level) {
+		for (PeepholeOptimizer.Instr instr : PeepholeOptimizer.decode(code(frame))) {
+			if ( usesSelfOrReturns(instr.opcode) ) return false;
+			if ( (instr.opcode==Bytecode.PUSH_LOCAL || instr.opcode==Bytecode.STORE_LOCAL) &&
+				 instr.operands[0]>level )
+			{
+				return false;
+			}
+			if ( isBlock(instr.opcode) && !isClean(blocks[instr.operands[0]], blocks, level+1) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public ClosureKind kind(STCompiledBlock blk) {
+		if ( isClean(blk, method.blocks) ) return ClosureKind.CLEAN;
+		return canCopy(blk, 0) ? ClosureKind.COPYING : ClosureKind.FULL;
+	}
+
+	/** Can the block level frames out from frame copy what frame uses from outside it? */
+	protected boolean canCopy(STCompiledBlock frame, int level) {
+		for (PeepholeOptimizer.Instr instr : PeepholeOptimizer.decode(code(frame))) {
+			if ( instr.opcode==Bytecode.RETURN ) return false;
+			if ( instr.opcode==Bytecode.PUSH_LOCAL && instr.operands[0]>level &&
+				 stored.contains(slot(frame, instr)) )
+			{
+				return false;
+			}
+			if ( instr.opcode==Bytecode.STORE_LOCAL && instr.operands[0]>level ) return false;
+			if ( isBlock(instr.opcode) && !canCopy(method.blocks[instr.operands[0]], level+1) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** The variable that local access instr in frame refers to */
+	protected Slot slot(STCompiledBlock frame, PeepholeOptimizer.Instr instr) {
+		int depth = 0, index;
+		if ( instr.opcode==Bytecode.PUSH_LOCAL || instr.opcode==Bytecode.STORE_LOCAL ) {
+			depth = instr.operands[0];
+			index = instr.operands[1];
+		}
+		else { // short form
+			index = (instr.opcode-Bytecode.PUSH_LOCAL_0) % Bytecode.NUM_SHORT_FORMS;
+		}
+		STCompiledBlock target = frame;
+		for (int i = 0; i < depth && target!=null; i++) {
+			target = parents.get(target);
+		}
+		return new Slot(target, index); // null frame if no code creates the block any more
+	}
+
+	protected List<STCompiledBlock> frames() {
+		List<STCompiledBlock> frames = new ArrayList<>();
+		frames.add(method);
+		if ( method.blocks!=null ) {
+			for (STCompiledBlock blk : method.blocks) frames.add(blk);
+		}
+		return frames;
+	}
+
+	protected static byte[] code(STCompiledBlock blk) {
+		return blk.bytecode!=null ? blk.bytecode : new byte[0];
+	}
+
+	protected static boolean isBlock(short opcode) {
+		return opcode==Bytecode.BLOCK || opcode==Bytecode.PUSH_CLEAN_BLOCK;
+	}
+
+	protected static boolean isStore(short opcode) {
+		return opcode==Bytecode.STORE_LOCAL ||
+			opcode>=Bytecode.STORE_LOCAL_0 && opcode<Bytecode.STORE_LOCAL_0+Bytecode.NUM_SHORT_FORMS;
+	}
+
+	protected static boolean usesSelfOrReturns(short opcode) {
+		if ( opcode>=Bytecode.PUSH_FIELD_0 && opcode<Bytecode.STORE_FIELD_0+Bytecode.NUM_SHORT_FORMS ) {
+			return true;
+		}
+		switch ( opcode ) {
+			case Bytecode.SELF :
+			case Bytecode.PUSH_FIELD :
+			case Bytecode.STORE_FIELD :
+			case Bytecode.SEND_SUPER :
+			case Bytecode.RETURN :
+				return true;
+			default :
+				return false;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package smalltalk.compiler;
+
+import com.google.common.hash.Hashing;
+import org.antlr.symtab.Symbol;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.Trees;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STMethod;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonGenerator;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Records what STC built last time so that {@code STC -incremental} can
+ *  skip classes whose .sto output is still valid.
+ *
+ *  For each class we keep a hash of its shape, which is its source text
+ *  outside its methods, a hash per method, its superclass and the globals
+ *  it references. A class is stale, and must be recompiled, if any of
+ *  those hashes changed or its .sto file is missing. Other classes only
+ *  compile against a class's shape and selectors, so editing method
+ *  bodies recompiles just that class. A class is also stale if its
+ *  superclass or any global it references was reshaped: its shape or
+ *  selectors changed, it's new or gone, or its own superclass was
+ *  reshaped. Any change to one of {@link #dependencies}, even to a
+ *  method body, makes every class stale. Changing -dbg, -format or -O
+ *  invalidates everything.
+ *
+ *  The manifest lives in the output directory as {@link #FILENAME}.
+ */
+public class BuildManifest {
+	public static final String FILENAME = "stc-manifest.json";
+	public static final int VERSION = 2; // 2 split the class hash into shape and methods
+
+	public static class Entry {
+		/** Hash of the class's text outside its methods */
+		public final String shape;
+		public final String superClassName;
+		/** Selector, or "class " and selector, -> hash of the method's text, in source order */
+		public final Map<String,String> methods;
+		public Set<String> globals = Collections.emptySet();
+
+		public Entry(String shape, String superClassName, Map<String,String> methods) {
+			this.shape = shape;
+			this.superClassName = superClassName;
+			this.methods = methods;
+		}
+	}
+
+	/** Output directory holding the manifest and .sto files */
+	public final String dir;
+
+	public final boolean genDbg;
+
+	public final ObjectFormat format;
+
+	/** {@link Compiler#getCodeGenOptions} of the build */
+	public final String codeGenOptions;
+
+	/** What we built last time; empty if no manifest or -dbg/-format/-O changed */
+	protected final Map<String,Entry> previous;
+
+	/** What we are building now; written by multiple compile threads */
+	protected final Map<String,Entry> current = new ConcurrentHashMap<>();
+
+	/** Classes that every class depends on, such as the literal classes
+	 *  when folding constants; see {@link ConstantFolder#dependencies}
+	 */
+	public Collection<String> dependencies = Collections.emptySet();
+
+	protected final Set<String> stale = new HashSet<>();
+
+	protected BuildManifest(String dir, boolean genDbg, ObjectFormat format, String codeGenOptions,
+	                        Map<String,Entry> previous)
+	{
+		this.dir = dir;
+		this.genDbg = genDbg;
+		this.format = format;
+		this.codeGenOptions = codeGenOptions;
+		this.previous = previous;
+	}
+
+	public static BuildManifest load(String dir, boolean genDbg) throws IOException {
+		return load(dir, genDbg, ObjectFormat.JSON);
+	}
+
+	public static BuildManifest load(String dir, boolean genDbg, ObjectFormat format) throws IOException {
+		return load(dir, genDbg, format, new Compiler().getCodeGenOptions());
+	}
+
+	/** Load the manifest from dir or start from scratch if there is none */
+	public static BuildManifest load(String dir, boolean genDbg, ObjectFormat format, String codeGenOptions)
+		throws IOException
+	{
+		Map<String,Entry> previous = new HashMap<>();
+		Path path = Paths.get(dir, FILENAME);
+		if ( Files.exists(path) ) {
+			JsonObject manifest;
+			try ( Reader r = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+			      JsonReader reader = Json.createReader(r) )
+			{
+				manifest = reader.readObject();
+			}
+			if ( manifest.getInt("version", 0)==VERSION && manifest.getBoolean("genDbg", false)==genDbg &&
+				 manifest.getString("format", "json").equals(format.name().toLowerCase()) &&
+				 manifest.getString("codeGenOptions", "-O0").equals(codeGenOptions) )
+			{
+				JsonObject classes = manifest.getJsonObject("classes");
+				for (String className : classes.keySet()) {
+					previous.put(className, readEntry(classes.getJsonObject(className)));
+				}
+			}
+		}
+		return new BuildManifest(dir, genDbg, format, codeGenOptions, previous);
+	}
+
+	public void save() throws IOException {
+		JsonObjectBuilder classes = Json.createObjectBuilder();
+		for (Map.Entry<String,Entry> e : new TreeMap<>(current).entrySet()) {
+			classes.add(e.getKey(), writeEntry(e.getValue()));
+		}
+		JsonObject manifest = Json.createObjectBuilder()
+			.add("version", VERSION)
+			.add("genDbg", genDbg)
+			.add("format", format.name().toLowerCase())
+			.add("codeGenOptions", codeGenOptions)
+			.add("classes", classes)
+			.build();
+		Map<String,Object> config = Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true);
+		try ( Writer w = Files.newBufferedWriter(Paths.get(dir, FILENAME), StandardCharsets.UTF_8);
+		      JsonWriter writer = Json.createWriterFactory(config).createWriter(w) )
+		{
+			writer.writeObject(manifest);
+		}
+	}
+
+	/** Record the fingerprint of a class as found in the current sources.
+	 *  Call after DefineSymbols so method selectors are known.
+	 */
+	public void fingerprint(String fileName, SmalltalkParser.ClassDefContext classDef) {
+		STClass cl = classDef.scope;
+		if ( cl==null ) return; // redefinition; compiler reports the error
+		List<ParserRuleContext> methodTrees = new ArrayList<>();
+		methodTrees.addAll(classDef.classMethod());
+		methodTrees.addAll(classDef.method());
+		methodTrees.sort(Comparator.comparingInt(m -> m.getStart().getStartIndex()));
+		Map<String,String> methods = new LinkedHashMap<>();
+		for (ParserRuleContext m : methodTrees) {
+			boolean isClassMethod = m instanceof SmalltalkParser.ClassMethodContext;
+			STMethod scope = isClassMethod ?
+				((SmalltalkParser.ClassMethodContext)m).method().scope : ((SmalltalkParser.MethodContext)m).scope;
+			if ( scope!=null ) {
+				methods.put(isClassMethod ? "class "+scope.getName() : scope.getName(), hash(getText(m)));
+			}
+		}
+		fingerprint(fileName, cl, classDef, methodTrees, methods);
+	}
+
+	public void fingerprint(String fileName, SmalltalkParser.MainContext main) {
+		if ( main.classScope==null ) return; // no main program
+		fingerprint(fileName, main.classScope, main, Collections.singletonList(main),
+		            Collections.singletonMap("main", hash(getText(main))));
+	}
+
+	protected void fingerprint(String fileName, STClass cl, ParserRuleContext tree,
+	                           List<ParserRuleContext> methodTrees, Map<String,String> methods)
+	{
+		String shape = getTextOutside(tree, methodTrees);
+		if ( genDbg ) { // dbg instructions ref the file name and lines
+			shape = fileName+":"+tree.getStart().getLine()+"\n"+shape;
+		}
+		current.put(cl.getName(), new Entry(hash(shape), cl.getSuperClassName(), methods));
+	}
+
+	/** Once all classes are fingerprinted, figure out which classes must be
+	 *  recompiled. Propagates staleness to subclasses and to classes that
+	 *  reference a stale global until nothing changes.
+	 */
+	public void computeStaleClasses() {
+		stale.clear();
+		Set<String> reshaped = new HashSet<>();
+		for (String className : previous.keySet()) {
+			if ( !current.containsKey(className) ) reshaped.add(className); // deleted class
+		}
+		for (Map.Entry<String,Entry> e : current.entrySet()) {
+			String className = e.getKey();
+			Entry now = e.getValue();
+			Entry old = previous.get(className);
+			if ( old==null || !old.shape.equals(now.shape) || !old.methods.keySet().equals(now.methods.keySet()) ) {
+				reshaped.add(className);
+				stale.add(className);
+			}
+			else if ( !new ArrayList<>(old.methods.entrySet()).equals(new ArrayList<>(now.methods.entrySet())) ||
+			          !Files.exists(Paths.get(dir, className+".sto")) )
+			{
+				stale.add(className); // only method bodies or their order changed
+			}
+		}
+		boolean done = false;
+		while ( !done ) {
+			done = true;
+			for (Map.Entry<String,Entry> e : current.entrySet()) {
+				String className = e.getKey();
+				if ( stale.contains(className) ) continue;
+				Entry entry = e.getValue();
+				Set<String> globals = previous.get(className).globals; // unchanged class refs same globals
+				boolean superReshaped = entry.superClassName!=null && reshaped.contains(entry.superClassName);
+				if ( superReshaped || !Collections.disjoint(globals, reshaped) ||
+					 !Collections.disjoint(dependencies, stale) || !Collections.disjoint(dependencies, reshaped) )
+				{
+					stale.add(className);
+					if ( superReshaped ) reshaped.add(className); // inherited fields moved
+					done = false;
+				}
+			}
+		}
+		// up-to-date classes carry their old globals forward
+		for (Map.Entry<String,Entry> e : current.entrySet()) {
+			if ( !stale.contains(e.getKey()) ) {
+				e.getValue().globals = previous.get(e.getKey()).globals;
+			}
+		}
+	}
+
+	public boolean isStale(String className) {
+		return stale.contains(className);
+	}
+
+	public Set<String> getStaleClasses() {
+		return Collections.unmodifiableSet(stale);
+	}
+
+	/** After resolving symbols in a recompiled class, record the globals it
+	 *  references: unresolved ids and ids that resolve to classes.
+	 */
+	public void recordGlobals(String className, ParserRuleContext tree) {
+		Entry entry = current.get(className);
+		if ( entry==null ) return;
+		Set<String> globals = new TreeSet<>();
+		for (ParseTree t : Trees.findAllRuleNodes(tree, SmalltalkParser.RULE_id)) {
+			Symbol sym = ((SmalltalkParser.IdContext)t).sym;
+			if ( sym==null || sym instanceof STClass ) {
+				globals.add(t.getText());
+			}
+		}
+		entry.globals = globals;
+	}
+
+	public static String getText(ParserRuleContext tree) {
+		Interval interval = Interval.of(tree.getStart().getStartIndex(), tree.getStop().getStopIndex());
+		return tree.getStart().getInputStream().getText(interval);
+	}
+
+	/** Return tree's text without that of parts, which are subtrees in source order */
+	public static String getTextOutside(ParserRuleContext tree, List<ParserRuleContext> parts) {
+		CharStream input = tree.getStart().getInputStream();
+		StringBuilder buf = new StringBuilder();
+		int start = tree.getStart().getStartIndex();
+		for (ParserRuleContext part : parts) {
+			if ( part.getStart().getStartIndex()>start ) {
+				buf.append(input.getText(Interval.of(start, part.getStart().getStartIndex()-1)));
+			}
+			start = part.getStop().getStopIndex()+1;
+		}
+		if ( tree.getStop().getStopIndex()>=start ) {
+			buf.append(input.getText(Interval.of(start, tree.getStop().getStopIndex())));
+		}
+		return buf.toString();
+	}
+
+	protected static String hash(String text) {
+		return Hashing.sha1().hashString(text, StandardCharsets.UTF_8).toString();
+	}
+
+	protected static Entry readEntry(JsonObject json) {
+		Map<String,String> methods = new LinkedHashMap<>();
+		JsonObject methodsJSON = json.getJsonObject("methods");
+		for (String selector : methodsJSON.keySet()) {
+			methods.put(selector, methodsJSON.getString(selector));
+		}
+		Entry entry = new Entry(json.getString("shape"), json.getString("superClassName", null), methods);
+		Set<String> globals = new TreeSet<>();
+		for (JsonValue v : json.getJsonArray("globals")) {
+			globals.add(((JsonString)v).getString());
+		}
+		entry.globals = globals;
+		return entry;
+	}
+
+	protected static JsonObject writeEntry(Entry entry) {
+		JsonObjectBuilder builder = Json.createObjectBuilder();
+		builder.add("shape", entry.shape);
+		if ( entry.superClassName!=null ) {
+			builder.add("superClassName", entry.superClassName);
+		}
+		JsonObjectBuilder methods = Json.createObjectBuilder();
+		for (Map.Entry<String,String> m : entry.methods.entrySet()) {
+			methods.add(m.getKey(), m.getValue());
+		}
+		builder.add("methods", methods);
+		JsonArrayBuilder globals = Json.createArrayBuilder();
+		for (String g : entry.globals) {
+			globals.add(g);
+		}
+		builder.add("globals", globals);
+		return builder.build();
+	}
+}
@@ -1,6 +1,7 @@
 package smalltalk.compiler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Bytecode {
@@ -69,6 +70,14 @@ public class Bytecode {
 	public static final short STORE_LOCAL 			= 19;
 	public static final short POP					= 20;
 
+	/** Conditional jumps pop a Boolean and jump to their first address if it
+	 *  matches. A non-Boolean stays on the stack and execution continues at
+	 *  the second address, where the compiler put the send it inlined.
+	 */
+	public static final short JUMP					= 21;
+	public static final short JUMP_IF_TRUE			= 22;
+	public static final short JUMP_IF_FALSE			= 23;
+
 	public static final short SEND					= 25;
 	public static final short SEND_SUPER			= 26;
 	public static final short BLOCK					= 27;
@@ -77,8 +86,57 @@ public class Bytecode {
 
 	public static final short DBG					= 30;
 
-	/** Used for disassembly; describes instruction set */
-	public static final Instruction[] instructions = new Instruction[] {
+	/** Prefix: SHORT and LITERAL operands of the next instruction are 4 bytes */
+	public static final short WIDE					= 31;
+
+	/** Binary sends whose selector is implied by the opcode; see
+	 *  {@link #specialSelectors}. A VM can apply the Integer or Float
+	 *  primitive directly when receiver and argument allow and fall back
+	 *  to a full send of the selector otherwise.
+	 */
+	public static final short SEND_ADD				= 32;
+	public static final short SEND_SUB				= 33;
+	public static final short SEND_MUL				= 34;
+	public static final short SEND_DIV				= 35;
+	public static final short SEND_LT				= 36;
+	public static final short SEND_GT				= 37;
+	public static final short SEND_LE				= 38;
+	public static final short SEND_GE				= 39;
+	public static final short SEND_EQ				= 40;
+
+	/** Selector of each special send, in opcode order from SEND_ADD */
+	public static final String[] specialSelectors = {"+", "-", "*", "/", "<", ">", "<=", ">=", "="};
+
+	/** Short forms with the operand in the opcode: PUSH_LOCAL_0+i is
+	 *  push_local 0, i and so on for slots 0..3 of the current frame and
+	 *  fields 0..3. PUSH_INT_M1..PUSH_INT_2 push -1..2; PUSH_BYTE pushes
+	 *  a signed byte operand.
+	 */
+	public static final short PUSH_LOCAL_0			= 41;
+	public static final short STORE_LOCAL_0			= 45;
+	public static final short PUSH_FIELD_0			= 49;
+	public static final short STORE_FIELD_0			= 53;
+	public static final short PUSH_INT_M1			= 57;
+	public static final short PUSH_BYTE				= 61;
+
+	/** Like BLOCK for a block that captures nothing, so the VM can create
+	 *  it once and share it; see {@link BlockClassifier}.
+	 */
+	public static final short PUSH_CLEAN_BLOCK		= 62;
+
+	/** Operands 0..NUM_SHORT_FORMS-1 have a short form */
+	public static final int NUM_SHORT_FORMS = 4;
+	public static final int MIN_SHORT_INT = -1;
+
+	/** Opcodes from here on are superinstructions, each a sequence of
+	 *  other instructions fused into one whose operands are theirs in
+	 *  order. They vary by build; see {@link InstructionSet}.
+	 */
+	public static final short FIRST_SUPERINSTRUCTION	= 64;
+	public static final int MAX_SUPERINSTRUCTIONS	= 64; // opcodes must fit a signed byte
+
+	/** Used for disassembly; describes instruction set without superinstructions */
+	public static final Instruction[] instructions = Arrays.copyOf(new Instruction[] {
 		null, // <INVALID>
 		new Instruction("nil"),				// index is the opcode
 		new Instruction("self"),
@@ -98,8 +156,11 @@ public class Bytecode {
 		new Instruction("store_field", OperandType.SHORT),
 		new Instruction("store_local", OperandType.SHORT, OperandType.SHORT),
 		new Instruction("pop"),
+		new Instruction("jump", OperandType.ADDR),
+		new Instruction("jump_if_true", OperandType.ADDR, OperandType.ADDR), // target, non-Boolean fallback
+		new Instruction("jump_if_false", OperandType.ADDR, OperandType.ADDR),
 
-		null, null, null, null, 		// leave room for gap in ints
+		null,		 		// leave room for gap in ints
 
 		new Instruction("send", OperandType.SHORT, OperandType.LITERAL),
 		new Instruction("send_super", OperandType.SHORT, OperandType.LITERAL),
@@ -108,13 +169,128 @@ public class Bytecode {
 		new Instruction("return"),
 
 		new Instruction("dbg", OperandType.LITERAL, OperandType.DBG_LOCATION), // filename, line:charpos in file
-	};
+		new Instruction("wide"),
+
+		new Instruction("send_add"),		// 1 arg, selector implied
+		new Instruction("send_sub"),
+		new Instruction("send_mul"),
+		new Instruction("send_div"),
+		new Instruction("send_lt"),
+		new Instruction("send_gt"),
+		new Instruction("send_le"),
+		new Instruction("send_ge"),
+		new Instruction("send_eq"),
+
+		new Instruction("push_local_0"),
+		new Instruction("push_local_1"),
+		new Instruction("push_local_2"),
+		new Instruction("push_local_3"),
+		new Instruction("store_local_0"),
+		new Instruction("store_local_1"),
+		new Instruction("store_local_2"),
+		new Instruction("store_local_3"),
+		new Instruction("push_field_0"),
+		new Instruction("push_field_1"),
+		new Instruction("push_field_2"),
+		new Instruction("push_field_3"),
+		new Instruction("store_field_0"),
+		new Instruction("store_field_1"),
+		new Instruction("store_field_2"),
+		new Instruction("store_field_3"),
+		new Instruction("push_int_m1"),
+		new Instruction("push_int_0"),
+		new Instruction("push_int_1"),
+		new Instruction("push_int_2"),
+		new Instruction("push_byte", OperandType.BYTE),
+		new Instruction("push_clean_block", OperandType.SHORT), // block number within method
+	}, FIRST_SUPERINSTRUCTION+MAX_SUPERINSTRUCTIONS);
+
+	/** Return an instruction that does opcodes in order, named like
+	 *  push_local_0+send_add, or throw if they have over MAX_OPNDS operands
+	 *  altogether or one isn't an instruction.
+	 */
+	public static Instruction fuse(short... opcodes) {
+		StringBuilder name = new StringBuilder();
+		List<OperandType> types = new ArrayList<>();
+		for (short op : opcodes) {
+			Instruction I = op>0 && op<FIRST_SUPERINSTRUCTION ? instructions[op] : null;
+			if ( I==null ) {
+				throw new IllegalArgumentException("can't fuse opcode "+op);
+			}
+			if ( name.length()>0 ) name.append('+');
+			name.append(I.name);
+			for (int i = 0; i < I.n && I.type[i]!=OperandType.NONE; i++) {
+				types.add(I.type[i]);
+			}
+		}
+		if ( types.size()>MAX_OPNDS ) {
+			throw new IllegalArgumentException("too many operands to fuse "+name);
+		}
+		while ( types.size()<MAX_OPNDS ) types.add(OperandType.NONE);
+		Instruction fused = new Instruction(name.toString(), types.get(0), types.get(1), types.get(2));
+		fused.n = (int)types.stream().filter(t -> t!=OperandType.NONE).count();
+		return fused;
+	}
+
+	/** Return the implicit selector of a special send or null if opcode isn't one */
+	public static String specialSelector(int opcode) {
+		return opcode>=SEND_ADD && opcode<SEND_ADD+specialSelectors.length ?
+			specialSelectors[opcode-SEND_ADD] : null;
+	}
+
+	/** Return the special send opcode for a binary selector or 0 if there isn't one */
+	public static short specialSend(String selector) {
+		for (int i = 0; i < specialSelectors.length; i++) {
+			if ( specialSelectors[i].equals(selector) ) return (short)(SEND_ADD+i);
+		}
+		return 0;
+	}
+
+	/** Return the address of each SEND, SEND_SUPER and special send in
+	 *  bytecode, in order; a special send needs a cache for when the VM
+	 *  can't apply a primitive. A send's inline cache slot is its index
+	 *  here, so a VM can allocate one cache per site when it loads a block
+	 *  without any operand in the send itself. A superinstruction appears
+	 *  once per send it fuses.
+	 */
+	public static int[] sendSites(byte[] bytecode) {
+		return sendSites(bytecode, InstructionSet.BASE);
+	}
+
+	/** Like {@link #sendSites(byte[])} for code that uses set's superinstructions */
+	public static int[] sendSites(byte[] bytecode, InstructionSet set) {
+		List<Integer> sites = new ArrayList<>();
+		int ip = 0;
+		while ( bytecode!=null && ip<bytecode.length ) {
+			int start = ip;
+			boolean wide = bytecode[ip]==WIDE;
+			if ( wide ) ip++;
+			int opcode = bytecode[ip++];
+			Instruction I = set.get(opcode);
+			if ( I==null ) {
+				throw new IllegalArgumentException("no such instruction "+opcode+" at address "+start);
+			}
+			short[] fused = set.superinstruction(opcode);
+			for (short op : fused!=null ? fused : new short[] {(short)opcode}) {
+				if ( op==SEND || op==SEND_SUPER || specialSelector(op)!=null ) sites.add(start);
+			}
+			for (int i = 0; i < I.n; i++) {
+				boolean widened = wide && (I.type[i]==OperandType.SHORT || I.type[i]==OperandType.LITERAL);
+				ip += widened ? 4 : I.type[i].sizeInBytes;
+			}
+		}
+		return sites.stream().mapToInt(Integer::intValue).toArray();
+	}
 
 	public static String disassemble(String blkName, byte[] bytecode, String[] literals, int start) {
+		return disassemble(blkName, bytecode, literals, start, InstructionSet.BASE);
+	}
+
+	public static String disassemble(String blkName, byte[] bytecode, String[] literals, int start, InstructionSet set) {
 		StringBuilder buf = new StringBuilder();
 		int i=start;
 		while (bytecode!=null && i<bytecode.length) {
-			i = disassembleInstruction(buf, blkName, bytecode, literals, i);
+			i = disassembleInstruction(buf, blkName, bytecode, literals, i, set);
 			buf.append('\n');
 		}
 		return buf.toString();
@@ -122,29 +298,45 @@ public class Bytecode {
 
 	public static String disassembleInstruction(String blkName, byte[] bytecode, String[] literals, int ip) {
 		StringBuilder buf = new StringBuilder();
-		disassembleInstruction(buf, blkName, bytecode, literals, ip);
+		disassembleInstruction(buf, blkName, bytecode, literals, ip, InstructionSet.BASE);
 		return buf.toString();
 	}
 
-	public static int disassembleInstruction(StringBuilder buf, String blkName, byte[] bytecode, String[] literals, int ip) {
+	public static int disassembleInstruction(StringBuilder buf, String blkName, byte[] bytecode, String[] literals, int ip,
+	                                         InstructionSet set)
+	{
 		int opcode = bytecode[ip];
 		if ( ip>=bytecode.length ) {
 			throw new IllegalArgumentException("ip out of range: "+ip);
 		}
-		Bytecode.Instruction I =
-			Bytecode.instructions[opcode];
+		Bytecode.Instruction I = set.get(opcode);
 		if ( I==null ) {
 			throw new IllegalArgumentException("no such instruction "+opcode+
 				" at address "+ip+" of "+ blkName+"\n");
 		}
-		String instrName = I.name;
+		boolean wide = opcode==WIDE && ip+1<bytecode.length;
+		if ( wide ) { // show as one instruction like push_literal_w
+			opcode = bytecode[++ip];
+			I = set.get(opcode);
+			if ( I==null ) {
+				throw new IllegalArgumentException("no such instruction "+opcode+
+					" at address "+ip+" of "+ blkName+"\n");
+			}
+			ip--;
+		}
+		String instrName = wide ? I.name+"_w" : I.name;
 		if ( instrName.equals("dbg") ) {
 			buf.append(String.format("%04d:  %s ", ip, instrName));
 		}
 		else {
 			buf.append(String.format("%04d:  %-15s", ip, instrName));
+			if ( instrName.length()>=15 ) buf.append(' '); // superinstructions
+		}
+		ip += wide ? 2 : 1;
+		if ( specialSelector(opcode)!=null ) {
+			buf.append(String.format("'%s'", specialSelector(opcode)));
+			return ip;
 		}
-		ip++;
 		if ( I.n==0 ) {
 			buf.append("  ");
 			return ip;
@@ -161,10 +353,10 @@ public class Bytecode {
 					operands.add(String.valueOf(getShort(bytecode, ip)));
 					break;
 				case SHORT :
-					operands.add(String.valueOf(getShort(bytecode, ip)));
+					operands.add(String.valueOf(wide ? getInt(bytecode, ip) : getShort(bytecode, ip)));
 					break;
 				case LITERAL:
-					int lit = getShort(bytecode, ip);
+					int lit = wide ? getInt(bytecode, ip) : getShort(bytecode, ip);
 //					operands.add(String.format("'%s'(@%d)", literals[lit], lit));
 					operands.add(String.format("'%s'", literals[lit]));
 					break;
@@ -186,7 +378,8 @@ public class Bytecode {
 					System.err.println("invalid opnd type: "+I.type[i]);
 					break;
 			}
-			ip += I.type[i].sizeInBytes;
+			boolean widened = wide && (I.type[i]==OperandType.SHORT || I.type[i]==OperandType.LITERAL);
+			ip += widened ? 4 : I.type[i].sizeInBytes;
 		}
 		for (int i = 0; i < operands.size(); i++) {
 			String s = operands.get(i);
@@ -19,30 +19,52 @@ public class Code extends ByteList { // just an alias
 		return bytes;
 	}
 	
+	/** Largest SHORT or LITERAL operand; an instruction with a larger
+	 *  operand is prefixed with {@link Bytecode#WIDE} and all of its SHORT
+	 *  and LITERAL operands are 4 bytes.
+	 */
+	public static final int MAX_SHORT_OPERAND = 0xFFFF;
+
 	public static Code withIntOperand(short operation, int operand) {
-        checkBounds(operand);
-        return Code.of(operation, 0, 0, 0, operand);
+		Code bytes = new Code();
+		bytes.add(operation);
+		addOperand(bytes, operand, 4);
+		return bytes;
+	}
+
+	public static Code withShortOperand(short operation, int operand) {
+		return withShortOperands(operation, operand);
+	}
+
+	public static Code withShortOperands(short operation, int... operands) {
+		Code bytes = new Code();
+		boolean wide = isWide(operands);
+		if ( wide ) bytes.add(Bytecode.WIDE);
+		bytes.add(operation);
+		for (int operand : operands) {
+			checkBounds(operand);
+			addOperand(bytes, operand, wide ? 4 : 2);
+		}
+		return bytes;
+	}
+
+	static void checkBounds(int operand) {
+		if ( operand<0 ) throw new IllegalArgumentException("operand must be >= 0: "+operand);
 	}
 
-    private static void checkBounds(int operand) {
-        if (operand > Byte.MAX_VALUE) throw new IllegalArgumentException("sorry bro, operand is too large for me");
-    }
+	static boolean isWide(int... operands) {
+		for (int operand : operands) {
+			if ( operand>MAX_SHORT_OPERAND ) return true;
+		}
+		return false;
+	}
 
-    public static Code withShortOperand(short operation, int operand) {
-        checkBounds(operand);
-        return Code.of(operation, 0, operand);
-    }
-    
-    public static Code withShortOperands(short operation, int... operands) {
-        Code bytes = new Code();
-        bytes.add(operation);
-        for (int operand : operands) {
-            checkBounds(operand);
-            bytes.add((short) 0);
-            bytes.add((short) operand);
-        }
-        return bytes;
-    }
+	/** Append size bytes of v, high byte first */
+	static void addOperand(ByteList bytes, int v, int size) {
+		for (int shift = 8*(size-1); shift>=0; shift -= 8) {
+			bytes.add((short)((v >> shift) & 0xFF));
+		}
+	}
 
 	public static Code join(Code... chunks) {
 		Code bytes = new Code();
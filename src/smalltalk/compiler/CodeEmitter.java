@@ -0,0 +1,142 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.misc.ByteList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Bytecode for a single method or block, appended in execution order
+ *  into one growable buffer. {@link CodeGenerator} emits into the emitter
+ *  for the current method or block instead of building a {@link Code}
+ *  object per subtree and joining them, which recopied nested
+ *  expressions into every enclosing expression.
+ *
+ *  Operands are big-endian, like {@link Bytecode#getShort} and
+ *  {@link Bytecode#getInt} expect. SHORT and LITERAL operands take 2
+ *  bytes unless one exceeds {@link Code#MAX_SHORT_OPERAND}, in which case
+ *  the instruction gets a {@link Bytecode#WIDE} prefix and 4-byte
+ *  operands. Forward jumps go to a {@link Label} whose ADDR operand is
+ *  patched when the label is marked.
+ */
+public class CodeEmitter extends ByteList {
+	public static class Label {
+		/** Address of the instruction following mark(); -1 until marked */
+		int address = -1;
+		/** Where to patch in address once we know it */
+		final List<Integer> operandRefs = new ArrayList<>();
+	}
+
+	private final List<Label> labels = new ArrayList<>();
+
+	public CodeEmitter() {
+		super(64);
+	}
+
+	public void emit(short opcode) {
+		add(opcode);
+	}
+
+	public void emit(short... opcodes) {
+		for (short op : opcodes) add(op);
+	}
+
+	public void emitShort(short opcode, int operand) {
+		Code.checkBounds(operand);
+		if ( operand>Code.MAX_SHORT_OPERAND ) {
+			add(Bytecode.WIDE);
+			add(opcode);
+			addInt(operand);
+		}
+		else {
+			add(opcode);
+			addShort(operand);
+		}
+	}
+
+	public void emitShorts(short opcode, int... operands) {
+		boolean wide = Code.isWide(operands);
+		if ( wide ) add(Bytecode.WIDE);
+		add(opcode);
+		for (int operand : operands) {
+			Code.checkBounds(operand);
+			Code.addOperand(this, operand, wide ? 4 : 2);
+		}
+	}
+
+	public void emitInt(short opcode, int operand) {
+		add(opcode);
+		addInt(operand);
+	}
+
+	public void emitByte(short opcode, int operand) {
+		add(opcode);
+		add((short)(operand & 0xFF));
+	}
+
+	public void emitChar(short opcode, char c) {
+		add(opcode);
+		addShort(c);
+	}
+
+	/** Append code built elsewhere such as {@link Compiler#dbg} */
+	public void emit(Code code) {
+		for (int i = 0; i < code.n; i++) {
+			add(code.elements[i]);
+		}
+	}
+
+	public Label newLabel() {
+		Label label = new Label();
+		labels.add(label);
+		return label;
+	}
+
+	/** Label the address of the next instruction, patching earlier refs */
+	public void mark(Label label) {
+		label.address = n;
+		for (int ref : label.operandRefs) {
+			setInt(ref, label.address);
+		}
+	}
+
+	/** Emit opcode with an ADDR operand per target, each the label's address */
+	public void emitJump(short opcode, Label... targets) {
+		add(opcode);
+		for (Label target : targets) {
+			if ( target.address<0 ) {
+				target.operandRefs.add(n);
+			}
+			addInt(target.address<0 ? 0 : target.address);
+		}
+	}
+
+	/** Return address of next instruction */
+	public int ip() {
+		return n;
+	}
+
+	@Override
+	public byte[] bytes() {
+		for (Label label : labels) {
+			if ( label.address<0 && !label.operandRefs.isEmpty() ) {
+				throw new IllegalStateException("jump to unmarked label");
+			}
+		}
+		return super.bytes();
+	}
+
+	private void addShort(int v) {
+		Code.addOperand(this, v, 2);
+	}
+
+	private void addInt(int v) {
+		Code.addOperand(this, v, 4);
+	}
+
+	private void setInt(int i, int v) {
+		elements[i]   = (byte)((v >> 24) & 0xFF);
+		elements[i+1] = (byte)((v >> 16) & 0xFF);
+		elements[i+2] = (byte)((v >> 8) & 0xFF);
+		elements[i+3] = (byte)(v & 0xFF);
+	}
+}
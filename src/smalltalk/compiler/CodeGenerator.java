@@ -5,16 +5,21 @@ import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.Trees;
 import smalltalk.compiler.symbols.*;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Fill STBlock, STMethod objects in Symbol table with bytecode,
  * {@link STCompiledBlock}.
+ * <p>
+ * Visit methods append instructions to {@link #code}, the emitter for the
+ * method or block being compiled, and return {@link Code#None}.
  */
 public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     public static final boolean dumpCode = false;
@@ -23,13 +28,52 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     public Scope currentScope;
     public STMethod currentMethod;
 
+    /**
+     * Where to emit code for the current method or block
+     */
+    public CodeEmitter code;
+
     /**
      * With which compiler are we generating code?
      */
     public final Compiler compiler;
 
+    protected final ConstantFolder constantFolder;
+
+    /**
+     * Blocks whose code we are emitting inline into the enclosing method or
+     * block -> slot of the block's first variable in that frame; see
+     * {@link #frameAddress}
+     */
+    protected final Map<Scope, Integer> inlinedBlocks = new HashMap<>();
+
+    /**
+     * Literal blocks whose code is the same in any frame -> index in their
+     * method's blocks, so an inlined send's fallback reuses the block
+     * compiled for the inlined code; see {@link #isFrameIndependent}
+     */
+    protected final Map<SmalltalkParser.BlockContext, Integer> sharedBlocks = new HashMap<>();
+
+    /**
+     * Are we compiling the real blocks of an inlined send's fallback? They
+     * run only for non-Boolean receivers so we don't inline inside them.
+     */
+    protected boolean inFallback;
+
+    /**
+     * Frame being compiled -> its number of slots in use, including the
+     * hidden ones of the inlined to:do: loops we are in; see {@link #frameSlot}
+     */
+    protected final Map<STCompiledBlock, Integer> frameSizes = new IdentityHashMap<>();
+
+    /**
+     * Frame being compiled -> most slots it has had in use at once
+     */
+    protected final Map<STCompiledBlock, Integer> maxFrameSizes = new IdentityHashMap<>();
+
     public CodeGenerator(Compiler compiler) {
         this.compiler = compiler;
+        this.constantFolder = new ConstantFolder(compiler);
     }
 
     /**
@@ -71,14 +115,17 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         currentMethod = ctx.scope;
         currentClassScope = ctx.classScope;
         ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, ctx.scope);
-        Code code = visit(ctx.body())
-                .join(Code.of(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN));
-        ctx.scope.compiledBlock.bytecode = code.bytes();
+        code = new CodeEmitter();
+        visit(ctx.body());
+        code.emit(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN);
+        setBytecode(ctx.scope.compiledBlock);
         ctx.scope.compiledBlock.setNargs(ctx.scope.getNumberOfParameters());
-        ctx.scope.compiledBlock.setNlocals(ctx.scope.getNumberOfVariables());
+        ctx.scope.compiledBlock.setNlocals(nlocals(ctx.scope));
+        BlockClassifier.classify(ctx.scope.compiledBlock);
         popScope();
         currentMethod = null;
-        return code;
+        code = null;
+        return Code.None;
     }
 
     @Override
@@ -91,16 +138,14 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
     @Override
     public Code visitAssign(SmalltalkParser.AssignContext ctx) {
-        Code code = visit(ctx.messageExpression());
-        String varName = ctx.lvalue().sym.getName();
-        int localIndex = currentMethod.getLocalIndex(varName);
-        if (localIndex != -1) {
-            int delta = getRelativeScopeCount(varName);
-            return code.join(Code.withShortOperands(Bytecode.STORE_LOCAL, delta, localIndex));
+        visit(ctx.messageExpression());
+        VariableAddress addr = frameAddress(ctx.lvalue().addr);
+        if (addr.kind == VariableAddress.Kind.LOCAL) {
+            emitLocal(Bytecode.STORE_LOCAL, Bytecode.STORE_LOCAL_0, addr.depth, addr.index);
         } else {
-            int fieldIndex = currentClassScope.getFieldIndex(varName);
-            return code.join(Code.withShortOperand(Bytecode.STORE_FIELD, fieldIndex));
+            emitField(Bytecode.STORE_FIELD, Bytecode.STORE_FIELD_0, addr.index);
         }
+        return Code.None;
     }
 
     @Override
@@ -110,34 +155,86 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
     @Override
     public Code visitBlock(SmalltalkParser.BlockContext ctx) {
+        Integer shared = sharedBlocks.get(ctx);
+        if (shared != null) {
+            emitPushBlock(shared);
+            return Code.None;
+        }
+        // Blocks nested in an inlined block are compiled again inside its
+        // fallback's block if they use variables of enclosing frames. Their
+        // slots are defined the first time.
+        boolean recompiling = ctx.scope.compiledBlock != null;
         pushScope(ctx.scope);
         ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, ctx.scope);
-        addBlockToCurrentMethod(ctx.scope.compiledBlock);
-        Code code = Code.None;
-        if (ctx.blockArgs() != null) {
-            visit(ctx.blockArgs());
+        int blockIndex = addBlockToCurrentMethod(ctx.scope.compiledBlock);
+        CodeEmitter enclosingCode = code;
+        code = new CodeEmitter();
+        if (!recompiling) {
+            if (ctx.blockArgs() != null) {
+                visit(ctx.blockArgs());
+            }
+            visit(ctx.body());
+        } else if (ctx.body() instanceof SmalltalkParser.FullBodyContext) {
+            emitStatements(((SmalltalkParser.FullBodyContext) ctx.body()).stat());
+        } else {
+            visit(ctx.body());
         }
-        code = code.join(visit(ctx.body()));
-        code = code.join(Code.of(Bytecode.BLOCK_RETURN));
+        code.emit(Bytecode.BLOCK_RETURN);
 
-        ctx.scope.compiledBlock.bytecode = code.bytes();
+        setBytecode(ctx.scope.compiledBlock);
         ctx.scope.compiledBlock.setNargs(ctx.scope.getNumberOfParameters());
-        ctx.scope.compiledBlock.setNlocals(ctx.scope.getNumberOfVariables() - ctx.scope.getNumberOfParameters());
-        int blockIndex = ctx.scope.index;
+        ctx.scope.compiledBlock.setNlocals(nlocals(ctx.scope));
         popScope();
 
-        return Code.withShortOperand(Bytecode.BLOCK, blockIndex);
+        code = enclosingCode;
+        if (isFrameIndependent(ctx)) {
+            sharedBlocks.put(ctx, blockIndex);
+        }
+        emitPushBlock(blockIndex);
+        return Code.None;
+    }
+
+    protected void emitPushBlock(int blockIndex) {
+        STCompiledBlock[] blocks = currentMethod.compiledBlock.blocks;
+        boolean clean = compiler.cleanBlocks && BlockClassifier.isClean(blocks[blockIndex], blocks);
+        code.emitShort(clean ? Bytecode.PUSH_CLEAN_BLOCK : Bytecode.BLOCK, blockIndex);
+    }
+
+    /**
+     * Does blk, including the blocks nested in it, use only its own
+     * variables, self, fields and globals? Then its code doesn't depend on
+     * which frame creates it.
+     */
+    protected static boolean isFrameIndependent(SmalltalkParser.BlockContext blk) {
+        for (ParseTree t : Trees.getDescendants(blk)) {
+            VariableAddress addr = null;
+            if (t instanceof SmalltalkParser.IdContext) addr = ((SmalltalkParser.IdContext) t).addr;
+            if (t instanceof SmalltalkParser.LvalueContext) addr = ((SmalltalkParser.LvalueContext) t).addr;
+            if (addr == null || addr.kind != VariableAddress.Kind.LOCAL) continue;
+            int nesting = 0; // blocks between t and blk
+            for (ParseTree p = t.getParent(); p != blk; p = p.getParent()) {
+                if (p instanceof SmalltalkParser.BlockContext) nesting++;
+            }
+            if (addr.depth > nesting) return false;
+        }
+        return true;
     }
 
-    private void addBlockToCurrentMethod(STCompiledBlock childBlock) {
+    /**
+     * Return the index of childBlock in its method's blocks. That's the
+     * block's {@link STBlock#index} unless some blocks were inlined.
+     */
+    private int addBlockToCurrentMethod(STCompiledBlock childBlock) {
         STCompiledBlock[] parentBlocks = currentMethod.compiledBlock.blocks;
         if (parentBlocks == null) {
             currentMethod.compiledBlock.blocks = new STCompiledBlock[1];
             currentMethod.compiledBlock.blocks[0] = childBlock;
+            return 0;
         } else {
             STCompiledBlock[] newBlocks = Arrays.copyOf(parentBlocks, parentBlocks.length + 1);
             currentMethod.compiledBlock.blocks = newBlocks;
             newBlocks[newBlocks.length - 1] = childBlock;
+            return newBlocks.length - 1;
         }
     }
 
@@ -157,17 +254,23 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     @Override
     public Code visitOperatorMethod(SmalltalkParser.OperatorMethodContext ctx) {
         pushScope(ctx.scope);
+        currentMethod = ctx.scope;
         ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, ctx.scope);
         if (ctx.methodBlock() instanceof SmalltalkParser.PrimitiveMethodBlockContext) {
             ctx.scope.compiledBlock.bytecode = new byte[0];
             ctx.scope.compiledBlock.setNlocals(0);
             ctx.scope.compiledBlock.setNargs(ctx.scope.getNumberOfParameters());
         } else {
-            ctx.scope.compiledBlock.bytecode = visit(ctx.methodBlock())
-                    .join(Code.of(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN))
-                    .bytes();
+            code = new CodeEmitter();
+            visit(ctx.methodBlock());
+            code.emit(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN);
+            setBytecode(ctx.scope.compiledBlock);
+            ctx.scope.compiledBlock.setNlocals(nlocals(ctx.scope));
+            BlockClassifier.classify(ctx.scope.compiledBlock);
+            code = null;
         }
         popScope();
+        currentMethod = null;
         return Code.None;
     }
 
@@ -184,11 +287,14 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
             currentMethod.addArgument(arg);
         }
         ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, ctx.scope);
-        ctx.scope.compiledBlock.bytecode = visit(ctx.methodBlock())
-                .join(Code.of(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN))
-                .bytes();
+        code = new CodeEmitter();
+        visit(ctx.methodBlock());
+        code.emit(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN);
+        setBytecode(ctx.scope.compiledBlock);
+        code = null;
         ctx.scope.compiledBlock.setNargs(ctx.scope.getNumberOfParameters());
-        ctx.scope.compiledBlock.setNlocals(ctx.scope.getNumberOfVariables() - ctx.scope.getNumberOfParameters());
+        ctx.scope.compiledBlock.setNlocals(nlocals(ctx.scope));
+        BlockClassifier.classify(ctx.scope.compiledBlock);
         popScope();
         currentMethod = null;
         return Code.None;
@@ -209,15 +315,18 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         pushScope(ctx.scope);
         currentMethod = ctx.scope;
         ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, ctx.scope);
-        Code methodBlockCode = visit(ctx.methodBlock());
         if (ctx.methodBlock() instanceof SmalltalkParser.SmalltalkMethodBlockContext) {
+            code = new CodeEmitter();
             if (((SmalltalkParser.SmalltalkMethodBlockContext) ctx.methodBlock()).body() instanceof SmalltalkParser.EmptyBodyContext) {
-                ctx.scope.compiledBlock.bytecode = Code.of(Bytecode.SELF, Bytecode.RETURN).bytes();
+                code.emit(Bytecode.SELF, Bytecode.RETURN);
             } else {
-                ctx.scope.compiledBlock.bytecode = methodBlockCode
-                        .join(Code.of(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN))
-                        .bytes();
+                visit(ctx.methodBlock());
+                code.emit(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN);
             }
+            setBytecode(ctx.scope.compiledBlock);
+            ctx.scope.compiledBlock.setNlocals(nlocals(ctx.scope));
+            BlockClassifier.classify(ctx.scope.compiledBlock);
+            code = null;
         } else if (ctx.methodBlock() instanceof SmalltalkParser.PrimitiveMethodBlockContext) {
             ctx.scope.compiledBlock.bytecode = new byte[0];
         }
@@ -231,10 +340,10 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     public Code visitClassDef(SmalltalkParser.ClassDefContext ctx) {
         currentClassScope = ctx.scope;
         pushScope(ctx.scope);
-        Code code = visitChildren(ctx);
+        visitChildren(ctx);
         popScope();
         currentClassScope = null;
-        return code;
+        return Code.None;
     }
 
     public STCompiledBlock getCompiledPrimitive(STPrimitiveMethod primitive) {
@@ -253,31 +362,36 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
      */
     @Override
     public Code visitFullBody(SmalltalkParser.FullBodyContext ctx) {
-        Code code = Code.None;
         if (ctx.localVars() != null) {
-            code = code.join(visit(ctx.localVars()));
+            visit(ctx.localVars());
         }
-        for (int i = 0; i < ctx.stat().size(); i++) {
+        emitStatements(ctx.stat());
+        return Code.None;
+    }
+
+    protected void emitStatements(List<SmalltalkParser.StatContext> stats) {
+        for (int i = 0; i < stats.size(); i++) {
             if (i != 0) {
-                code = code.join(Code.of(Bytecode.POP));
+                code.emit(Bytecode.POP);
             }
-            code = code.join(visit(ctx.stat(i)));
+            visit(stats.get(i));
         }
-        return code;
     }
 
     @Override
     public Code visitEmptyBody(SmalltalkParser.EmptyBodyContext ctx) {
-        return Code.of(Bytecode.NIL);
+        code.emit(Bytecode.NIL);
+        return Code.None;
     }
 
     @Override
     public Code visitReturn(SmalltalkParser.ReturnContext ctx) {
-        Code e = visitChildren(ctx);
+        visitChildren(ctx);
         if (compiler.genDbg) {
-            e = Code.join(e, dbg(ctx.start)); // put dbg after expression as that is when it executes
+            code.emit(dbg(ctx.start)); // put dbg after expression as that is when it executes
         }
-        return e.join(Compiler.method_return());
+        code.emit(Bytecode.RETURN);
+        return Code.None;
     }
 
     public void pushScope(Scope scope) {
@@ -296,57 +410,22 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
     @Override
     public Code visitId(SmalltalkParser.IdContext ctx) {
-        String id = ctx.getText();
-        int localIndex = currentMethod.getLocalIndex(id);
-        int localIndexBlock = ((STBlock)currentScope).getLocalIndex(id);
-        if (localIndex != -1) {
-            return Code.withShortOperands(Bytecode.PUSH_LOCAL, getRelativeScopeCount(id), localIndex);
-        } else if (localIndexBlock != -1) {
-            return Code.withShortOperands(Bytecode.PUSH_LOCAL, getRelativeScopeCount(id), localIndexBlock);
-        } else if (currentClassScope.getFieldIndex(id) != -1) {
-            return Code.withShortOperand(Bytecode.PUSH_FIELD, currentClassScope.getFieldIndex(id));
-        } else if (currentMethod.getArgumentIndex(id) != -1) {
-            return Code.of(Bytecode.PUSH_LOCAL, getRelativeScopeCount(id), 0, currentMethod.getArgumentIndex(id));
-        } else {
-            try {
-                if (getRelativeScopeCount(id) > 0) {
-                    Scope s = currentScope;
-                    int relativeScopeCount = getRelativeScopeCount(id);
-                    for (int i = 0; i < relativeScopeCount; i++) {
-                        s = currentScope.getEnclosingScope();
-                    }
-                    return Code.withShortOperands(Bytecode.PUSH_LOCAL, relativeScopeCount, ((STBlock) s).getLocalIndex(id));
-                }
-            } catch (IllegalArgumentException iae) {
-                // not found
-            }
-            int idx = currentClassScope.stringTable.add(id);
-            return Code.withShortOperand(Bytecode.PUSH_GLOBAL, idx);
-        }
-    }
-
-    /**
-     * Look for name in current block; keep looking upwards in
-     * enclosingScope until found; return how many scopes we had to
-     * jump to find name. 0 indicates same scope.
-     */
-    public int getRelativeScopeCount(String name) {
-        int count = 0;
-        Scope scope = currentScope;
-        while (scope.getSymbol(name) == null) {
-            scope = scope.getEnclosingScope();
-            if (scope == null) {
-                throw new IllegalArgumentException(name + " not found");
-            }
-            if (scope instanceof STBlock) {
-                count++;
-            }
+        VariableAddress addr = frameAddress(ctx.addr);
+        switch (addr.kind) {
+            case LOCAL:
+                emitLocal(Bytecode.PUSH_LOCAL, Bytecode.PUSH_LOCAL_0, addr.depth, addr.index);
+                break;
+            case FIELD:
+                emitField(Bytecode.PUSH_FIELD, Bytecode.PUSH_FIELD_0, addr.index);
+                break;
+            default:
+                code.emitShort(Bytecode.PUSH_GLOBAL, addLiteral(addr.name));
         }
-        return count;
+        return Code.None;
     }
 
     public int getLiteralIndex(String s) {
-        return currentClassScope.stringTable.toList().indexOf(s);
+        return currentClassScope.stringTable.indexOf(s);
     }
 
     @Override
@@ -354,24 +433,30 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         if (ctx.STRING() != null) {
             String str = ctx.STRING().getText();
             str = str.replaceAll("'", "");
-            addLiteral(str);
-            int literalIndex = getLiteralIndex(str);
-            return Code.withShortOperand(Bytecode.PUSH_LITERAL, literalIndex);
+            int literalIndex = addLiteral(str);
+            code.emitShort(Bytecode.PUSH_LITERAL, literalIndex);
+            return Code.None;
         }
         if (ctx.CHAR() != null) {
-            char c = ctx.CHAR().getText().charAt(0);
-            return Code.of(Bytecode.PUSH_CHAR, c);
+            char c = ctx.CHAR().getText().charAt(1); // skip '$'
+            code.emitChar(Bytecode.PUSH_CHAR, c);
+            return Code.None;
         }
         if (ctx.NUMBER() != null) {
-            String intStr = ctx.NUMBER().getText();
-            short s = Short.parseShort(intStr);
-            return Code.withIntOperand(Bytecode.PUSH_INT, s);
+            String number = ctx.NUMBER().getText();
+            if (ConstantFolder.isFloat(number)) {
+                code.emitInt(Bytecode.PUSH_FLOAT, Float.floatToIntBits(Float.parseFloat(number)));
+            } else {
+                emitPushInt(Integer.parseInt(number));
+            }
+            return Code.None;
         }
         String literal = ctx.getText();
         if (!literalBytecodes.containsKey(literal)) {
             throw new RuntimeException("Unknown literal: " + literal);
         }
-        return Code.of(literalBytecodes.get(literal));
+        code.emit(literalBytecodes.get(literal));
+        return Code.None;
     }
 
     private static final Map<String, Short> literalBytecodes = new HashMap<String, Short>() {{
@@ -381,8 +466,11 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         put("false", Bytecode.FALSE);
     }};
 
-    public void addLiteral(String id) {
-        currentClassScope.stringTable.add(id);
+    /**
+     * Add id to the literal pool if new; return its index.
+     */
+    public int addLiteral(String id) {
+        return currentClassScope.stringTable.add(id);
     }
 
     public Code dbgAtEndMain(Token t) {
@@ -410,88 +498,502 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         return visit(ctx.messageExpression());
     }
 
+    /**
+     * Emit args and the send; the caller has already emitted the receiver.
+     */
     public Code sendKeywordMsg(ParserRuleContext receiver,
-                               Code receiverCode,
                                List<SmalltalkParser.BinaryExpressionContext> args,
                                List<TerminalNode> keywords) {
-
-
-        Code code = new Code();
-        code = code.join(receiverCode);
         for (SmalltalkParser.BinaryExpressionContext arg : args) {
-            code = code.join(visit(arg));
+            visit(arg);
         }
         StringBuilder sb = new StringBuilder();
         for (TerminalNode keyword : keywords) {
             sb.append(keyword.getText());
         }
         String literal = sb.toString();
-        addLiteral(literal);
-
-        int receiverIndex = getLiteralIndex(literal);
-        code = code.join(Code.withShortOperands(
-                Bytecode.SEND,
-                keywords.size(),
-                receiverIndex));
-        return code;
+        int receiverIndex = addLiteral(literal);
+        code.emitShorts(Bytecode.SEND, keywords.size(), receiverIndex);
+        return Code.None;
     }
 
     @Override
     public Code visitKeywordSend(SmalltalkParser.KeywordSendContext ctx) {
-        Code recvCode = visit(ctx.recv);
-        boolean isSuper = ctx.recv.unaryExpression().stream()
-                .anyMatch(unaryExpressionContext -> unaryExpressionContext instanceof SmalltalkParser.UnarySuperMsgSendContext);
-        return sendKeywordMsg(ctx.recv, recvCode, ctx.args, ctx.KEYWORD());
+        if (compiler.inlineControlFlow && !inFallback && inlineControlFlow(ctx)) {
+            return Code.None;
+        }
+        visit(ctx.recv);
+        return sendKeywordMsg(ctx.recv, ctx.args, ctx.KEYWORD());
+    }
+
+    /**
+     * Compile ifTrue:, ifFalse:, ifTrue:ifFalse:, and:, or:, whileTrue:
+     * and to:do: sends whose blocks are literal into jumps. Return false
+     * and emit nothing for any other send. A non-Boolean receiver takes the
+     * conditional jump's fallback address to the original send with real
+     * blocks, compiled once by {@link #visitFallback}.
+     */
+    protected boolean inlineControlFlow(SmalltalkParser.KeywordSendContext ctx) {
+        StringBuilder selector = new StringBuilder();
+        for (TerminalNode keyword : ctx.KEYWORD()) {
+            selector.append(keyword.getText());
+        }
+        if (selector.toString().equals("to:do:")) {
+            SmalltalkParser.BlockContext body = countedLoopBlock(ctx.args.get(1));
+            if (body == null) return false;
+            inlineToDo(ctx, body);
+            return true;
+        }
+        SmalltalkParser.BlockContext[] blocks = new SmalltalkParser.BlockContext[ctx.args.size()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = inlinableBlock(ctx.args.get(i));
+            if (blocks[i] == null) return false;
+        }
+        switch (selector.toString()) {
+            case "ifTrue:":
+                visit(ctx.recv);
+                inlineIf(ctx, Bytecode.JUMP_IF_FALSE, blocks[0], null, Bytecode.NIL);
+                return true;
+            case "ifFalse:":
+                visit(ctx.recv);
+                inlineIf(ctx, Bytecode.JUMP_IF_TRUE, blocks[0], null, Bytecode.NIL);
+                return true;
+            case "ifTrue:ifFalse:":
+                visit(ctx.recv);
+                inlineIf(ctx, Bytecode.JUMP_IF_FALSE, blocks[0], blocks[1], Bytecode.NIL);
+                return true;
+            case "and:":
+                visit(ctx.recv);
+                inlineIf(ctx, Bytecode.JUMP_IF_FALSE, blocks[0], null, Bytecode.FALSE);
+                return true;
+            case "or:":
+                visit(ctx.recv);
+                inlineIf(ctx, Bytecode.JUMP_IF_TRUE, blocks[0], null, Bytecode.TRUE);
+                return true;
+            case "whileTrue:":
+                SmalltalkParser.BlockContext condition = inlinableBlock(ctx.recv);
+                if (condition == null) return false;
+                inlineWhileTrue(ctx, condition, blocks[0]);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * <pre>
+     *     jump_if_x  otherwise, fallback   (x is the branch not taken)
+     *     then-block code
+     *     jump end
+     * fallback:
+     *     push blocks, send original message
+     *     jump end
+     * otherwise:
+     *     else-block code or elseValue
+     * end:
+     * </pre>
+     */
+    private void inlineIf(SmalltalkParser.KeywordSendContext ctx, short jumpOp,
+                          SmalltalkParser.BlockContext then, SmalltalkParser.BlockContext orElse,
+                          short elseValue) {
+        CodeEmitter.Label otherwise = code.newLabel();
+        CodeEmitter.Label fallback = code.newLabel();
+        CodeEmitter.Label end = code.newLabel();
+        code.emitJump(jumpOp, otherwise, fallback);
+        inlineBlock(then);
+        code.emitJump(Bytecode.JUMP, end);
+        code.mark(fallback);
+        visitFallback(() -> sendKeywordMsg(ctx.recv, ctx.args, ctx.KEYWORD()));
+        code.emitJump(Bytecode.JUMP, end);
+        code.mark(otherwise);
+        if (orElse != null) {
+            inlineBlock(orElse);
+        } else {
+            code.emit(elseValue);
+        }
+        code.mark(end);
+    }
+
+    /**
+     * <pre>
+     * top:
+     *     condition code
+     *     jump_if_false exit, fallback
+     *     body code
+     *     pop
+     *     jump top
+     * fallback:
+     *     pop; push condition block, push body block, send whileTrue:; pop
+     * exit:
+     *     nil
+     * </pre>
+     * A non-Boolean condition hands the loop to the real whileTrue:,
+     * which evaluates the condition again and decides whether to go on.
+     */
+    private void inlineWhileTrue(SmalltalkParser.KeywordSendContext ctx,
+                                 SmalltalkParser.BlockContext condition,
+                                 SmalltalkParser.BlockContext body) {
+        CodeEmitter.Label top = code.newLabel();
+        CodeEmitter.Label exit = code.newLabel();
+        CodeEmitter.Label fallback = code.newLabel();
+        code.mark(top);
+        inlineBlock(condition);
+        code.emitJump(Bytecode.JUMP_IF_FALSE, exit, fallback);
+        inlineBlock(body);
+        code.emit(Bytecode.POP);
+        code.emitJump(Bytecode.JUMP, top);
+        code.mark(fallback);
+        code.emit(Bytecode.POP);
+        visitFallback(() -> {
+            visit(condition);
+            visit(body);
+        });
+        code.emitShorts(Bytecode.SEND, 1, addLiteral("whileTrue:"));
+        code.emit(Bytecode.POP);
+        code.mark(exit);
+        code.emit(Bytecode.NIL);
+    }
+
+    /**
+     * The loop variable and the limit live in hidden slots of the
+     * enclosing frame, so an iteration costs no block activation or
+     * recursive to:do: send. The receiver stays on the stack as the value
+     * of the loop, as Integer>>to:do: returns self.
+     * <pre>
+     *     receiver code; store_local i
+     *     limit code; store_local limit; pop
+     * top:
+     *     push_local i; push_local limit; send <=
+     *     jump_if_false exit, fallback
+     *     body code; pop
+     *     push_local i; push_int 1; send +; store_local i; pop
+     *     jump top
+     * fallback:
+     *     pop; push_local i; push_local limit; push block, send to:do:; pop
+     * exit:
+     * </pre>
+     * The fallback hands the rest of the loop to to:do: when <= doesn't
+     * answer a Boolean. Loops that follow reuse the hidden slots unless a
+     * block in the body might still read i.
+     */
+    private void inlineToDo(SmalltalkParser.KeywordSendContext ctx, SmalltalkParser.BlockContext body) {
+        STBlock frame = enclosingFrame();
+        int frameSize = frameSize(frame);
+        int i = frameSlot(frame);
+        int limit = frameSlot(frame);
+        int depth = 0; // frame is always the current one; inlined blocks have none
+        CodeEmitter.Label top = code.newLabel();
+        CodeEmitter.Label exit = code.newLabel();
+        CodeEmitter.Label fallback = code.newLabel();
+        visit(ctx.recv);
+        emitLocal(Bytecode.STORE_LOCAL, Bytecode.STORE_LOCAL_0, depth, i);
+        visit(ctx.args.get(0));
+        emitLocal(Bytecode.STORE_LOCAL, Bytecode.STORE_LOCAL_0, depth, limit);
+        code.emit(Bytecode.POP);
+        code.mark(top);
+        emitLocal(Bytecode.PUSH_LOCAL, Bytecode.PUSH_LOCAL_0, depth, i);
+        emitLocal(Bytecode.PUSH_LOCAL, Bytecode.PUSH_LOCAL_0, depth, limit);
+        emitBinarySend("<=");
+        code.emitJump(Bytecode.JUMP_IF_FALSE, exit, fallback);
+        int nblocks = numberOfBlocks();
+        inlineBlock(body, i);
+        boolean captured = numberOfBlocks() > nblocks;
+        code.emit(Bytecode.POP);
+        emitLocal(Bytecode.PUSH_LOCAL, Bytecode.PUSH_LOCAL_0, depth, i);
+        emitPushInt(1);
+        emitBinarySend("+");
+        emitLocal(Bytecode.STORE_LOCAL, Bytecode.STORE_LOCAL_0, depth, i);
+        code.emit(Bytecode.POP);
+        code.emitJump(Bytecode.JUMP, top);
+        code.mark(fallback);
+        code.emit(Bytecode.POP);
+        emitLocal(Bytecode.PUSH_LOCAL, Bytecode.PUSH_LOCAL_0, depth, i);
+        emitLocal(Bytecode.PUSH_LOCAL, Bytecode.PUSH_LOCAL_0, depth, limit);
+        visitFallback(() -> visit(ctx.args.get(1)));
+        code.emitShorts(Bytecode.SEND, 2, addLiteral("to:do:"));
+        code.emit(Bytecode.POP);
+        code.mark(exit);
+        if (!captured) {
+            frameSizes.put(frame.compiledBlock, frameSize);
+        }
+    }
+
+    private int numberOfBlocks() {
+        STCompiledBlock[] blocks = currentMethod.compiledBlock.blocks;
+        return blocks != null ? blocks.length : 0;
+    }
+
+    /**
+     * Emit the fallback of an inlined send, which compiles its literal
+     * blocks as real blocks, without inlining sends inside them.
+     */
+    protected void visitFallback(Runnable emit) {
+        boolean enclosing = inFallback;
+        inFallback = true;
+        emit.run();
+        inFallback = enclosing;
+    }
+
+    /**
+     * Emit the body of blk in place, leaving its value on the stack.
+     */
+    protected void inlineBlock(SmalltalkParser.BlockContext blk) {
+        inlineBlock(blk, 0);
+    }
+
+    /**
+     * Emit the body of blk in place; its variables live in the enclosing
+     * frame from slot base on.
+     */
+    protected void inlineBlock(SmalltalkParser.BlockContext blk, int base) {
+        pushScope(blk.scope);
+        inlinedBlocks.put(blk.scope, base);
+        visit(blk.body());
+        inlinedBlocks.remove(blk.scope);
+        popScope();
+    }
+
+    /**
+     * The method or block whose frame holds the variables of the code we
+     * are emitting.
+     */
+    protected STBlock enclosingFrame() {
+        Scope s = currentScope;
+        while (!(s instanceof STBlock) || inlinedBlocks.containsKey(s)) {
+            s = s.getEnclosingScope();
+        }
+        return (STBlock) s;
+    }
+
+    /**
+     * Allocate a hidden slot in frame after its variables and any hidden
+     * slots allocated so far. Hidden slots aren't symbols; only the frame's
+     * nlocals counts them.
+     */
+    protected int frameSlot(STBlock frame) {
+        int slot = frameSize(frame);
+        frameSizes.put(frame.compiledBlock, slot + 1);
+        maxFrameSizes.merge(frame.compiledBlock, slot + 1, Math::max);
+        return slot;
+    }
+
+    protected int frameSize(STBlock frame) {
+        return frameSizes.getOrDefault(frame.compiledBlock, frame.getNumberOfVariables());
+    }
+
+    /**
+     * Return the number of locals of blk's frame just compiled: its own and
+     * the most hidden slots that loops inlined into it used at once.
+     */
+    protected int nlocals(STBlock blk) {
+        frameSizes.remove(blk.compiledBlock);
+        Integer size = maxFrameSizes.remove(blk.compiledBlock);
+        return (size != null ? size : blk.getNumberOfVariables()) - blk.getNumberOfParameters();
+    }
+
+    /**
+     * Return the block if expr is a literal block with one argument, no
+     * locals and no assignment to the argument, else null. Its argument
+     * can then be the loop counter.
+     */
+    public static SmalltalkParser.BlockContext countedLoopBlock(SmalltalkParser.BinaryExpressionContext expr) {
+        SmalltalkParser.BlockContext blk = literalBlock(expr);
+        if (blk == null || blk.blockArgs() == null || blk.blockArgs().ID().size() != 1) return null;
+        String arg = blk.blockArgs().ID(0).getText();
+        for (ParseTree lvalue : Trees.findAllRuleNodes(blk.body(), SmalltalkParser.RULE_lvalue)) {
+            if (lvalue.getText().equals(arg)) return null;
+        }
+        return blk;
+    }
+
+    /**
+     * Return the block if expr is just a literal block with no arguments
+     * or locals, else null.
+     */
+    public static SmalltalkParser.BlockContext inlinableBlock(SmalltalkParser.BinaryExpressionContext expr) {
+        SmalltalkParser.BlockContext blk = literalBlock(expr);
+        return blk != null && blk.blockArgs() == null ? blk : null;
+    }
+
+    /**
+     * Return the block if expr is just a literal block with no locals, else null.
+     */
+    protected static SmalltalkParser.BlockContext literalBlock(SmalltalkParser.BinaryExpressionContext expr) {
+        if (!expr.bop().isEmpty() || !(expr.unaryExpression(0) instanceof SmalltalkParser.UnaryIsPrimaryContext)) {
+            return null;
+        }
+        SmalltalkParser.BlockContext blk =
+            ((SmalltalkParser.UnaryIsPrimaryContext) expr.unaryExpression(0)).primary().block();
+        if (blk == null) return null;
+        if (blk.body() instanceof SmalltalkParser.FullBodyContext &&
+            ((SmalltalkParser.FullBodyContext) blk.body()).localVars() != null) {
+            return null;
+        }
+        return blk;
+    }
+
+    /**
+     * Where a resolved variable lives at run time from {@link #currentScope}.
+     * Inlined blocks have no frame, so we don't count them in the depth,
+     * and their variables are slots of the enclosing frame.
+     */
+    protected VariableAddress frameAddress(VariableAddress addr) {
+        if (addr.kind != VariableAddress.Kind.LOCAL || inlinedBlocks.isEmpty()) {
+            return addr;
+        }
+        int depth = 0;
+        Scope s = currentScope;
+        for (int d = 0; d < addr.depth; s = s.getEnclosingScope()) {
+            if (s instanceof STBlock) {
+                if (!inlinedBlocks.containsKey(s)) depth++;
+                d++;
+            }
+        }
+        while (!(s instanceof STBlock)) {
+            s = s.getEnclosingScope(); // the block or method defining the variable
+        }
+        int index = addr.index + inlinedBlocks.getOrDefault(s, 0);
+        return depth == addr.depth && index == addr.index ? addr : VariableAddress.local(depth, index);
     }
 
     @Override
     public Code visitUnaryMsgSend(SmalltalkParser.UnaryMsgSendContext ctx) {
         String literal = ctx.ID().getText();
-        addLiteral(literal);
+        int literalIndex = addLiteral(literal);
 
-        return visit(ctx.unaryExpression())
-                .join(Code.withShortOperands(
-                        Bytecode.SEND, 0, getLiteralIndex(literal)));
+        visit(ctx.unaryExpression());
+        code.emitShorts(Bytecode.SEND, 0, literalIndex);
+        return Code.None;
     }
 
     @Override
     public Code visitUnarySuperMsgSend(SmalltalkParser.UnarySuperMsgSendContext ctx) {
         String literal = ctx.ID().getText();
-        addLiteral(literal);
-        return Code.of(Bytecode.SELF)
-                .join(Code.withShortOperands(
-                        Bytecode.SEND_SUPER, 0, getLiteralIndex(literal)));
+        int literalIndex = addLiteral(literal);
+        code.emit(Bytecode.SELF);
+        code.emitShorts(Bytecode.SEND_SUPER, 0, literalIndex);
+        return Code.None;
     }
 
     @Override
     public Code visitSuperKeywordSend(SmalltalkParser.SuperKeywordSendContext ctx) {
-        Code recvCode = visit(ctx.binaryExpression);
-        return sendKeywordMsg(ctx.binaryExpression, recvCode, ctx.args, ctx.KEYWORD());
+        visit(ctx.binaryExpression);
+        return sendKeywordMsg(ctx.binaryExpression, ctx.args, ctx.KEYWORD());
     }
 
     @Override
     public Code visitBinaryExpression(SmalltalkParser.BinaryExpressionContext ctx) {
-        Code code = Code.None;
         // Load 2 expressions, then apply binary operator
         // Rinse and repeat
-        code = code.join(visit(ctx.unaryExpression(0)));
-        int j = 1;
-        for (int i = 0; i < ctx.bop().size(); i++) {
-            code = code.join(visit(ctx.unaryExpression(j++)));
-            code = code.join(visit(ctx.bop(i)));
+        List<SmalltalkParser.UnaryExpressionContext> operands = ctx.unaryExpression();
+        List<SmalltalkParser.BopContext> bops = ctx.bop();
+        int i = 0;
+        Object value = compiler.foldConstants && !bops.isEmpty() ? constantFolder.valueOf(operands.get(0)) : null;
+        if (value != null) { // fold the literal prefix, if any
+            for (; i < bops.size(); i++) {
+                Object folded = constantFolder.fold(value, bops.get(i).getText(), constantFolder.valueOf(operands.get(i + 1)));
+                if (folded == null) break;
+                value = folded;
+            }
+            emitConstant(value);
+        } else {
+            visit(operands.get(0));
+        }
+        for (; i < bops.size(); i++) {
+            visit(operands.get(i + 1));
+            visit(bops.get(i));
+        }
+        return Code.None;
+    }
+
+    /**
+     * Push a value from {@link ConstantFolder}.
+     */
+    public void emitConstant(Object value) {
+        if (value instanceof Integer) {
+            emitPushInt((Integer) value);
+        } else if (value instanceof Float) {
+            code.emitInt(Bytecode.PUSH_FLOAT, Float.floatToIntBits((Float) value));
+        } else if (value instanceof String) {
+            code.emitShort(Bytecode.PUSH_LITERAL, addLiteral((String) value));
+        } else {
+            code.emit((Boolean) value ? Bytecode.TRUE : Bytecode.FALSE);
         }
-        return code;
     }
 
     @Override
     public Code visitBop(SmalltalkParser.BopContext ctx) {
-        StringBuilder sb = new StringBuilder();
-        for (SmalltalkParser.OpcharContext opcharContext : ctx.opchar()) {
-            sb.append(opcharContext.getText());
+        emitBinarySend(ctx.getText()); // opchars or '-'
+        return Code.None;
+    }
+
+    /**
+     * Send op with its special opcode such as SEND_ADD, if it has one and
+     * {@link Compiler#specialSends} is on, else with SEND.
+     */
+    public void emitBinarySend(String op) {
+        short special = compiler.specialSends ? Bytecode.specialSend(op) : 0;
+        if (special != 0) {
+            code.emit(special);
+        } else {
+            code.emitShorts(Bytecode.SEND, 1, addLiteral(op));
+        }
+    }
+
+    /**
+     * Emit PUSH_LOCAL or STORE_LOCAL as op, or as the one-byte shortForm+index
+     * for slots 0..3 of the current frame if {@link Compiler#shortForms}.
+     */
+    public void emitLocal(short op, short shortForm, int depth, int index) {
+        if (compiler.shortForms && depth == 0 && index >= 0 && index < Bytecode.NUM_SHORT_FORMS) {
+            code.emit((short) (shortForm + index));
+        } else {
+            code.emitShorts(op, depth, index);
+        }
+    }
+
+    /**
+     * Emit PUSH_FIELD or STORE_FIELD as op, or as shortForm+index for fields
+     * 0..3 if {@link Compiler#shortForms}.
+     */
+    public void emitField(short op, short shortForm, int index) {
+        if (compiler.shortForms && index >= 0 && index < Bytecode.NUM_SHORT_FORMS) {
+            code.emit((short) (shortForm + index));
+        } else {
+            code.emitShort(op, index);
+        }
+    }
+
+    /**
+     * Emit PUSH_INT, or with {@link Compiler#shortForms} PUSH_INT_M1..
+     * for -1..2 and PUSH_BYTE for other values that fit a signed byte.
+     */
+    public void emitPushInt(int value) {
+        if (!compiler.shortForms) {
+            code.emitInt(Bytecode.PUSH_INT, value);
+        } else if (value >= Bytecode.MIN_SHORT_INT && value < Bytecode.MIN_SHORT_INT + Bytecode.NUM_SHORT_FORMS) {
+            code.emit((short) (Bytecode.PUSH_INT_M1 + value - Bytecode.MIN_SHORT_INT));
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.emitByte(Bytecode.PUSH_BYTE, value);
+        } else {
+            code.emitInt(Bytecode.PUSH_INT, value);
+        }
+    }
+
+    /**
+     * Give blk the bytecode in {@link #code}, peephole optimized at -O1,
+     * and number its send sites now that no pass will remove any.
+     */
+    protected void setBytecode(STCompiledBlock blk) {
+        byte[] bytes = code.bytes();
+        blk.bytecode = compiler.optimizationLevel >= 1 ? compiler.peephole.optimize(bytes) : bytes;
+        int[] sites = Bytecode.sendSites(blk.bytecode);
+        blk.setNcacheSlots(sites.length);
+        for (int site : sites) {
+            if (Bytecode.specialSelector(blk.bytecode[site]) != null) {
+                currentClassScope.usesSpecialSends = true;
+            }
         }
-        String op = sb.toString();
-        addLiteral(op);
-        return Code.withShortOperands(Bytecode.SEND, 1, getLiteralIndex(op));
     }
 
     public String getProgramSourceForSubtree(ParserRuleContext ctx) {
@@ -0,0 +1,204 @@
+package smalltalk.compiler;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.antlr.symtab.ClassSymbol;
+import org.antlr.symtab.Symbol;
+import smalltalk.compiler.symbols.STClass;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A content-addressed cache of compiled classes shared across STC runs,
+ *  checkouts and machines. Each entry is the {@link STClass#serialize()}
+ *  output stored under a hash of everything that determines it: the
+ *  compiler version, the -dbg flag, the class source text and the source
+ *  of its superclasses (they determine field offsets). With constant
+ *  folding on, the source of Integer, Float and String goes in too.
+ *
+ *  Entries for each {@link ObjectFormat} are kept apart.
+ *
+ *  On a hit, STC skips code generation for that class and copies the cached
+ *  bytes to its .sto file. Entries are touched on every hit and
+ *  {@link #evict()} deletes least recently used entries until the cache
+ *  fits in maxBytes.
+ */
+public class CompileCache {
+	public static final String COMPILER_VERSION =
+		STC.class.getPackage().getImplementationVersion()!=null ?
+			STC.class.getPackage().getImplementationVersion() : "dev";
+
+	public static final String SUFFIX = ".sto";
+
+	public final Path dir;
+	public final long maxBytes;
+	public final ObjectFormat format;
+
+	public final AtomicInteger hits = new AtomicInteger();
+	public final AtomicInteger misses = new AtomicInteger();
+
+	/** Object files of classes found in or added to the cache during this
+	 *  run: class name -> .sto bytes
+	 */
+	protected final Map<String,byte[]> objectFiles = new ConcurrentHashMap<>();
+
+	public CompileCache(String dir, long maxBytes) throws IOException {
+		this(dir, maxBytes, ObjectFormat.JSON);
+	}
+
+	public CompileCache(String dir, long maxBytes, ObjectFormat format) throws IOException {
+		this.dir = Paths.get(dir);
+		this.maxBytes = maxBytes;
+		this.format = format;
+		Files.createDirectories(this.dir);
+	}
+
+	/** JSON entries keep the plain suffix so existing caches stay valid */
+	protected Path entry(String key) {
+		return dir.resolve(format==ObjectFormat.JSON ? key+SUFFIX : key+"-"+format.name().toLowerCase()+SUFFIX);
+	}
+
+	/** Compute cache key for class cl defined in fileName. sources maps the
+	 *  name of every class in the build to its source text. Superclasses outside
+	 *  of the build contribute just their name.
+	 */
+	public static String key(boolean genDbg, String fileName, STClass cl, Map<String,String> sources) {
+		return key(genDbg, new Compiler().getCodeGenOptions(), fileName, cl, sources);
+	}
+
+	/** Like {@link #key(boolean, String, STClass, Map)} for code generated
+	 *  with {@link Compiler#getCodeGenOptions} codeGenOptions.
+	 */
+	public static String key(boolean genDbg, String codeGenOptions, String fileName, STClass cl,
+	                         Map<String,String> sources)
+	{
+		return key(genDbg, codeGenOptions, fileName, cl, sources, Collections.emptyList());
+	}
+
+	/** Like {@link #key(boolean, String, String, STClass, Map)} for a class
+	 *  whose code also depends on the named classes and their superclasses,
+	 *  such as the literal classes when folding constants; see
+	 *  {@link ConstantFolder#dependencies}.
+	 */
+	public static String key(boolean genDbg, String codeGenOptions, String fileName, STClass cl,
+	                         Map<String,String> sources, Collection<String> dependencies)
+	{
+		Hasher hasher = Hashing.sha256().newHasher();
+		putString(hasher, COMPILER_VERSION);
+		hasher.putShort(ObjectFile.VERSION); // entries from dev builds before a format change
+		hasher.putBoolean(genDbg);
+		putString(hasher, codeGenOptions);
+		if ( genDbg ) {
+			putString(hasher, fileName); // dbg instructions ref the file name
+		}
+		putString(hasher, sources.get(cl.getName()));
+		putSuperClasses(hasher, cl, sources);
+		for (String name : dependencies) {
+			putString(hasher, name);
+			if ( sources.containsKey(name) ) {
+				putString(hasher, sources.get(name));
+			}
+			Symbol dep = cl.getEnclosingScope().resolve(name);
+			if ( dep instanceof ClassSymbol ) {
+				putSuperClasses(hasher, (ClassSymbol)dep, sources);
+			}
+		}
+		return hasher.hash().toString();
+	}
+
+	/** Superclasses outside of the build contribute just their name */
+	private static void putSuperClasses(Hasher hasher, ClassSymbol cl, Map<String,String> sources) {
+		Set<String> visited = new HashSet<>();
+		ClassSymbol sup = cl;
+		while ( sup.getSuperClassName()!=null && visited.add(sup.getSuperClassName()) ) {
+			String supName = sup.getSuperClassName();
+			putString(hasher, supName);
+			if ( sources.containsKey(supName) ) {
+				putString(hasher, sources.get(supName));
+			}
+			sup = sup.getSuperClassScope();
+			if ( sup==null ) break;
+		}
+	}
+
+	private static void putString(Hasher hasher, String s) {
+		hasher.putInt(s.length()); // delimit strings
+		hasher.putString(s, StandardCharsets.UTF_8);
+	}
+
+	/** If key is in cache, remember its object file for className, count a hit,
+	 *  and return true. Otherwise count a miss.
+	 */
+	public boolean restore(String className, String key) {
+		Path entry = entry(key);
+		try {
+			byte[] obj = Files.readAllBytes(entry);
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			objectFiles.put(className, obj);
+			hits.incrementAndGet();
+			return true;
+		}
+		catch (IOException ioe) { // missing or evicted by another process
+			misses.incrementAndGet();
+			return false;
+		}
+	}
+
+	/** Return object file for className found by {@link #restore} or
+	 *  added by {@link #put}; null if neither.
+	 */
+	public byte[] getObjectFile(String className) {
+		return objectFiles.get(className);
+	}
+
+	public void put(String key, STClass cl) throws IOException {
+		byte[] obj = format.encode(cl);
+		objectFiles.put(cl.getName(), obj);
+		// write then rename so concurrent readers never see a partial entry
+		Path tmp = Files.createTempFile(dir, key, ".tmp");
+		Files.write(tmp, obj);
+		Files.move(tmp, entry(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Delete least recently used entries until cache is no bigger than maxBytes */
+	public void evict() throws IOException {
+		Map<Path,FileTime> lastUsed = new HashMap<>();
+		Map<Path,Long> sizes = new HashMap<>();
+		long size = 0;
+		try ( DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*"+SUFFIX) ) {
+			for (Path p : files) {
+				try {
+					lastUsed.put(p, Files.getLastModifiedTime(p));
+					sizes.put(p, Files.size(p));
+					size += sizes.get(p);
+				}
+				catch (IOException ioe) {
+					// evicted by another process
+				}
+			}
+		}
+		List<Path> entries = new ArrayList<>(lastUsed.keySet());
+		entries.sort(Comparator.comparing(lastUsed::get));
+		for (int i = 0; size>maxBytes && i<entries.size(); i++) {
+			Files.deleteIfExists(entries.get(i));
+			size -= sizes.get(entries.get(i));
+		}
+	}
+}
@@ -2,12 +2,21 @@ package smalltalk.compiler;
 
 import org.antlr.symtab.Scope;
 import org.antlr.symtab.VariableSymbol;
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import smalltalk.compiler.symbols.*;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -21,6 +30,16 @@ public class Compiler {
 	protected String fileName;
 	private CodeGenerator codeGenerator = new CodeGenerator(this);
 	public boolean genDbg; // generate dbg file,line instructions
+	public boolean fusePasses = true; // resolve symbols while generating code; see ResolvingCodeGenerator
+	public boolean twoStageParse = true; // try SLL then LL; see parseClasses()
+	public PrintStream syntaxErrors = System.err; // where the lexer and parser report errors
+	public int optimizationLevel = 0; // -O1 runs peephole on each compiled block
+	public PeepholeOptimizer peephole = new PeepholeOptimizer();
+	public boolean specialSends; // send + - < etc. with SEND_ADD etc.; see Bytecode
+	public boolean shortForms; // one-byte push/store of locals 0..3, fields 0..3, small ints
+	public boolean foldConstants; // evaluate binary sends on literals; see ConstantFolder
+	public boolean inlineControlFlow; // compile ifTrue: etc. on literal blocks to jumps
+	public boolean cleanBlocks; // push blocks that capture nothing with PUSH_CLEAN_BLOCK
 
 	public final List<String> errors = new ArrayList<>();
 
@@ -32,33 +51,97 @@ public class Compiler {
 		this.symtab = symtab;
 	}
 
+	/** Use the same options as c, sharing its optimizer and so its savings counters */
+	public void copyOptions(Compiler c) {
+		genDbg = c.genDbg;
+		fusePasses = c.fusePasses;
+		twoStageParse = c.twoStageParse;
+		syntaxErrors = c.syntaxErrors;
+		optimizationLevel = c.optimizationLevel;
+		peephole = c.peephole;
+		specialSends = c.specialSends;
+		shortForms = c.shortForms;
+		foldConstants = c.foldConstants;
+		inlineControlFlow = c.inlineControlFlow;
+		cleanBlocks = c.cleanBlocks;
+	}
+
+	/** Options that change generated code, for cache keys and build manifests */
+	public String getCodeGenOptions() {
+		return "-O"+optimizationLevel+(specialSends ? " -special" : "")+
+			(shortForms ? " -short" : "")+(foldConstants ? " -fold" : "")+
+			(inlineControlFlow ? " -inline" : "")+(cleanBlocks ? " -clean" : "");
+	}
+
 	public STSymbolTable compile(String fileName, String input) {
 	    org.antlr.v4.runtime.ANTLRInputStream stream = new org.antlr.v4.runtime.ANTLRInputStream(input);
+	    return compile(fileName, stream);
+	}
 
+	public STSymbolTable compile(String fileName, CharStream stream) {
         ParserRuleContext tree = parseClasses(stream);
         defSymbols(tree);
-        resolveSymbols(tree);
-        codeGenerator.visit(tree);
+        resolveSymbolsAndGenerateCode(tree);
 
         return symtab;
 	}
 
 	/** Parse classes and/or a chunk of code, returning AST root.
 	 *  Return null upon syntax error.
+	 *
+	 *  If twoStageParse, first try fast SLL prediction, bailing out on the
+	 *  first syntax error. SLL handles nearly all valid input; only if it
+	 *  fails do we rewind and reparse with full LL and the default error
+	 *  strategy, which gives the same error messages and recovery as before.
 	 */
 	public ParserRuleContext parseClasses(CharStream input) {
+		ANTLRErrorListener listener = syntaxErrorListener();
 		SmalltalkLexer l = new SmalltalkLexer(input);
+		l.removeErrorListeners();
+		l.addErrorListener(listener);
 		CommonTokenStream tokens = new CommonTokenStream(l);
 		//System.out.println(tokens.getTokens());
 
 		this.parser = new SmalltalkParser(tokens);
-		fileTree= parser.file();
+		parser.removeErrorListeners();
+		if ( twoStageParse ) {
+			parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+			parser.setErrorHandler(new BailErrorStrategy());
+			try {
+				fileTree = parser.file();
+			}
+			catch (ParseCancellationException pce) {
+				tokens.seek(0);
+				parser.reset();
+				parser.addErrorListener(listener);
+				parser.setErrorHandler(new DefaultErrorStrategy());
+				parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+				fileTree = parser.file();
+			}
+		}
+		else {
+			parser.addErrorListener(listener);
+			fileTree = parser.file();
+		}
 
 		//System.out.println(((Tree)r.getTree()).toStringTree());
 		if ( parser.getNumberOfSyntaxErrors()>0 ) return null;
 		return fileTree;
 	}
 
+	/** Print errors like ANTLR's ConsoleErrorListener but to {@link #syntaxErrors} */
+	protected ANTLRErrorListener syntaxErrorListener() {
+		PrintStream out = syntaxErrors;
+		return new BaseErrorListener() {
+			@Override
+			public void syntaxError(Recognizer<?,?> recognizer, Object offendingSymbol, int line,
+			                        int charPositionInLine, String msg, RecognitionException e)
+			{
+				out.println("line "+line+":"+charPositionInLine+" "+msg);
+			}
+		};
+	}
+
 	public void defSymbols(ParserRuleContext tree) {
 		// Define classes/fields in first pass over tree
 		// This allows us to have forward class references
@@ -73,6 +156,23 @@ public class Compiler {
 		walker.walk(def, tree);
 	}
 
+	public void generateCode(ParserRuleContext tree) {
+		codeGenerator.visit(tree);
+	}
+
+	/** Run the passes after {@link #defSymbols}: one walk if fusePasses
+	 *  else {@link #resolveSymbols} then {@link #generateCode}.
+	 */
+	public void resolveSymbolsAndGenerateCode(ParserRuleContext tree) {
+		if ( fusePasses ) {
+			new ResolvingCodeGenerator(this).visit(tree);
+		}
+		else {
+			resolveSymbols(tree);
+			generateCode(tree);
+		}
+	}
+
 	public STBlock createBlock(STMethod currentMethod, ParserRuleContext tree) {
 //		System.out.println("create block in "+currentMethod+" "+args);
 		return new STBlock(currentMethod, tree);
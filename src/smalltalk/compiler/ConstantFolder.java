@@ -0,0 +1,190 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.MethodSymbol;
+import org.antlr.symtab.Symbol;
+import org.antlr.v4.runtime.ParserRuleContext;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STPrimitiveMethod;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Evaluate binary sends on literals at compile time so that
+ *  {@code 3 + 4 * 2} compiles to {@code push_int 14}. Binary operators
+ *  apply left to right, so only a literal prefix of a binary expression
+ *  folds: {@code 3 + 4 * x} becomes {@code push_int 7} then the {@code *}
+ *  send, but nothing in {@code x + 3 + 4} folds.
+ *
+ *  A send folds only if the receiver's class in the symbol table,
+ *  usually from image.st, implements the selector with the expected
+ *  primitive such as Integer_ADD or String_CAT. If the image is missing or
+ *  the selector is redefined, the send is compiled as usual. Sends that
+ *  would overflow an int or divide by zero are left for run time.
+ */
+public class ConstantFolder {
+	/** selector -> primitive name suffix for Integer and Float */
+	protected static final Map<String,String> numberPrimitives = new HashMap<String,String>() {{
+		put("+", "ADD");
+		put("-", "SUB");
+		put("*", "MULT");
+		put("/", "DIV");
+		put("<", "LT");
+		put(">", "GT");
+		put("<=", "LE");
+		put(">=", "GE");
+		put("=", "EQ");
+	}};
+
+	protected static final Map<String,String> stringPrimitives = new HashMap<String,String>() {{
+		put(",", "CAT");
+		put("=", "EQ");
+	}};
+
+	/** Classes whose methods decide what folds */
+	public static final List<String> LITERAL_CLASSES = Arrays.asList("Integer", "Float", "String");
+
+	/** Whose symbol table has the classes of literals? */
+	protected final Compiler compiler;
+
+	public ConstantFolder(Compiler compiler) {
+		this.compiler = compiler;
+	}
+
+	/** Classes that code compiled with compiler depends on beyond its own
+	 *  class and superclasses: {@link #LITERAL_CLASSES} if it folds constants.
+	 *  Editing Integer>>+ must recompile 3 + 4 everywhere.
+	 */
+	public static List<String> dependencies(Compiler compiler) {
+		return compiler.foldConstants ? LITERAL_CLASSES : Collections.emptyList();
+	}
+
+	/** Return the Integer, Float, String or Boolean value of tree, or null
+	 *  if it isn't a literal or a binary expression that folds entirely.
+	 */
+	public Object valueOf(ParserRuleContext tree) {
+		if ( tree instanceof SmalltalkParser.BinaryExpressionContext ) {
+			SmalltalkParser.BinaryExpressionContext ctx = (SmalltalkParser.BinaryExpressionContext)tree;
+			List<SmalltalkParser.UnaryExpressionContext> operands = ctx.unaryExpression();
+			List<SmalltalkParser.BopContext> bops = ctx.bop();
+			Object value = valueOf(operands.get(0));
+			for (int i = 0; value!=null && i < bops.size(); i++) {
+				value = fold(value, bops.get(i).getText(), valueOf(operands.get(i+1)));
+			}
+			return value;
+		}
+		if ( tree instanceof SmalltalkParser.UnaryIsPrimaryContext ) {
+			return valueOf(((SmalltalkParser.UnaryIsPrimaryContext)tree).primary());
+		}
+		if ( tree instanceof SmalltalkParser.PrimaryContext ) {
+			SmalltalkParser.PrimaryContext ctx = (SmalltalkParser.PrimaryContext)tree;
+			if ( ctx.literal()!=null ) return valueOf(ctx.literal());
+			if ( ctx.messageExpression()!=null ) return valueOf(ctx.messageExpression());
+			return null;
+		}
+		if ( tree instanceof SmalltalkParser.MessageExpressionContext ) {
+			return valueOf(((SmalltalkParser.MessageExpressionContext)tree).keywordExpression());
+		}
+		if ( tree instanceof SmalltalkParser.PassThroughContext ) {
+			return valueOf(((SmalltalkParser.PassThroughContext)tree).recv);
+		}
+		if ( tree instanceof SmalltalkParser.LiteralContext ) {
+			return literalValue((SmalltalkParser.LiteralContext)tree);
+		}
+		return null;
+	}
+
+	/** Return the value of literal as CodeGenerator would push it; null for nil, self and chars */
+	public static Object literalValue(SmalltalkParser.LiteralContext ctx) {
+		if ( ctx.NUMBER()!=null ) {
+			String text = ctx.NUMBER().getText();
+			try {
+				return isFloat(text) ? (Object)Float.parseFloat(text) : (Object)Integer.parseInt(text);
+			}
+			catch (NumberFormatException nfe) {
+				return null;
+			}
+		}
+		if ( ctx.STRING()!=null ) {
+			return ctx.STRING().getText().replaceAll("'", "");
+		}
+		switch ( ctx.getText() ) {
+			case "true" : return Boolean.TRUE;
+			case "false" : return Boolean.FALSE;
+			default : return null;
+		}
+	}
+
+	public static boolean isFloat(String number) {
+		return number.indexOf('.')>=0;
+	}
+
+	/** Return receiver op arg computed now or null if it must be sent at run time */
+	public Object fold(Object receiver, String op, Object arg) {
+		if ( receiver==null || arg==null ) return null;
+		if ( receiver instanceof Integer && arg instanceof Integer &&
+			 isPrimitive("Integer", op, numberPrimitives) )
+		{
+			return foldInt((Integer)receiver, op, (Integer)arg);
+		}
+		if ( receiver instanceof Float && arg instanceof Float &&
+			 isPrimitive("Float", op, numberPrimitives) )
+		{
+			return foldFloat((Float)receiver, op, (Float)arg);
+		}
+		if ( receiver instanceof String && arg instanceof String &&
+			 isPrimitive("String", op, stringPrimitives) )
+		{
+			return op.equals(",") ? (String)receiver+arg : (Object)receiver.equals(arg);
+		}
+		return null;
+	}
+
+	protected static Object foldInt(int x, String op, int y) {
+		try {
+			switch ( op ) {
+				case "+" : return Math.addExact(x, y);
+				case "-" : return Math.subtractExact(x, y);
+				case "*" : return Math.multiplyExact(x, y);
+				case "/" : return y!=0 ? (Object)(x / y) : null;
+				case "<" : return x < y;
+				case ">" : return x > y;
+				case "<=" : return x <= y;
+				case ">=" : return x >= y;
+				case "=" : return x == y;
+				default : return null;
+			}
+		}
+		catch (ArithmeticException overflow) {
+			return null;
+		}
+	}
+
+	protected static Object foldFloat(float x, String op, float y) {
+		switch ( op ) {
+			case "+" : return x + y;
+			case "-" : return x - y;
+			case "*" : return x * y;
+			case "/" : return y!=0 ? (Object)(x / y) : null;
+			case "<" : return x < y;
+			case ">" : return x > y;
+			case "<=" : return x <= y;
+			case ">=" : return x >= y;
+			case "=" : return x == y;
+			default : return null;
+		}
+	}
+
+	/** Does className implement op with primitive className_suffix as in image.st? */
+	protected boolean isPrimitive(String className, String op, Map<String,String> primitives) {
+		String suffix = primitives.get(op);
+		if ( suffix==null ) return false;
+		Symbol cl = compiler.symtab.GLOBALS.resolve(className);
+		if ( !(cl instanceof STClass) ) return false;
+		MethodSymbol m = ((STClass)cl).resolveMethod(op);
+		return m instanceof STPrimitiveMethod &&
+			((STPrimitiveMethod)m).primitiveName.equals(className+"_"+suffix);
+	}
+}
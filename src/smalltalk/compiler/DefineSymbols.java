@@ -64,7 +64,14 @@ public class DefineSymbols extends SmalltalkBaseListener {
 		// define MainClass
 		STClass cl = new STClass("MainClass", "Object");
 		ctx.classScope = cl;
-		currentScope.define(cl);
+		if ( currentScope.getSymbol("MainClass")!=null ) {
+			// still define main's symbols, in a MainClass nobody can see
+			compiler.error("main code in more than one file: "+compiler.getFileName());
+			cl.setEnclosingScope(currentScope);
+		}
+		else {
+			currentScope.define(cl);
+		}
 		pushScope(cl);
 
 		// define main method
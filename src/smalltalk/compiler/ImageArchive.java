@@ -0,0 +1,183 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.Symbol;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** All compiled classes of an image in one file, written by
+ *  {@code STC -archive file}. A header index maps each class name to
+ *  where its object file (either {@link ObjectFormat}) sits in the archive:
+ *
+ *  <pre>
+ *  int MAGIC, short VERSION, int nclasses,
+ *  nclasses * (int name length, UTF-8 name, int offset, int length),
+ *  object files...
+ *  </pre>
+ *
+ *  Offsets are from the start of the archive. {@link #open} maps the file
+ *  and reads just the index; {@link #load} decodes a class the first time
+ *  it's asked for. A class's methods are decoded with it.
+ */
+public class ImageArchive {
+	public static final int MAGIC = 0x53544941; // "STIA"
+	public static final short VERSION = 1;
+
+	protected final ByteBuffer archive;
+
+	/** class name -> {offset, length} in index order */
+	protected final Map<String,int[]> index;
+
+	protected final Map<String,ObjectFile> loaded = new ConcurrentHashMap<>();
+
+	protected ImageArchive(ByteBuffer archive, Map<String,int[]> index) {
+		this.archive = archive;
+		this.index = index;
+	}
+
+	public static void write(Path file, STSymbolTable symtab, ObjectFormat format) throws IOException {
+		write(file, symtab, format, null);
+	}
+
+	/** Pack every class in symtab into file. Use cache's object file for a
+	 *  class if it has one.
+	 */
+	public static void write(Path file, STSymbolTable symtab, ObjectFormat format, CompileCache cache)
+		throws IOException
+	{
+		List<String> names = new ArrayList<>();
+		List<byte[]> objs = new ArrayList<>();
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( !(s instanceof STClass) ) continue;
+			byte[] obj = cache!=null ? cache.getObjectFile(s.getName()) : null;
+			names.add(s.getName());
+			objs.add(obj!=null ? obj : format.encode((STClass) s));
+		}
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(names.size());
+		int headerSize = 4 + 2 + 4;
+		for (String name : names) {
+			headerSize += 4 + name.getBytes(StandardCharsets.UTF_8).length + 4 + 4;
+		}
+		int offset = headerSize;
+		for (int i = 0; i < names.size(); i++) {
+			byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+			out.writeInt(name.length);
+			out.write(name);
+			out.writeInt(offset);
+			out.writeInt(objs.get(i).length);
+			offset += objs.get(i).length;
+		}
+		try ( OutputStream f = new BufferedOutputStream(Files.newOutputStream(file)) ) {
+			header.writeTo(f);
+			for (byte[] obj : objs) {
+				f.write(obj);
+			}
+		}
+	}
+
+	/** Map file into memory and read its index; no classes are decoded */
+	public static ImageArchive open(Path file) throws IOException {
+		MappedByteBuffer buf;
+		try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		return read(buf);
+	}
+
+	public static ImageArchive read(ByteBuffer buf) {
+		try {
+			if ( buf.getInt(0)!=MAGIC ) {
+				throw new IllegalArgumentException("not an image archive");
+			}
+			short version = buf.getShort(4);
+			if ( version!=VERSION ) {
+				throw new IllegalArgumentException("unsupported image archive version "+version);
+			}
+			ByteBuffer header = buf.duplicate();
+			header.position(6);
+			int n = header.getInt();
+			Map<String,int[]> index = new LinkedHashMap<>();
+			for (int i = 0; i < n; i++) {
+				byte[] name = new byte[header.getInt()];
+				header.get(name);
+				int offset = header.getInt();
+				int length = header.getInt();
+				if ( offset<0 || length<0 || offset+length>buf.limit() ) {
+					throw new IllegalArgumentException("corrupt image archive index");
+				}
+				index.put(new String(name, StandardCharsets.UTF_8), new int[] {offset, length});
+			}
+			return new ImageArchive(buf, index);
+		}
+		catch (BufferUnderflowException | NegativeArraySizeException | IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("truncated or corrupt image archive", e);
+		}
+	}
+
+	public Set<String> getClassNames() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	public boolean contains(String className) {
+		return index.containsKey(className);
+	}
+
+	/** Return className decoded on first request; null if not in archive */
+	public ObjectFile load(String className) {
+		if ( !index.containsKey(className) ) return null;
+		return loaded.computeIfAbsent(className, name -> {
+			ByteBuffer obj = slice(name);
+			if ( obj.remaining()>=4 && obj.getInt(0)==ObjectFile.MAGIC ) {
+				return ObjectFile.readBinary(obj); // straight from the mapped file
+			}
+			return ObjectFormat.load(getObjectFile(name));
+		});
+	}
+
+	/** Return the raw object file for className; null if not in archive */
+	public byte[] getObjectFile(String className) {
+		if ( !index.containsKey(className) ) return null;
+		ByteBuffer slice = slice(className);
+		byte[] obj = new byte[slice.remaining()];
+		slice.get(obj);
+		return obj;
+	}
+
+	/** A view of className's object file; doesn't move the shared buffer's position */
+	protected ByteBuffer slice(String className) {
+		int[] entry = index.get(className);
+		ByteBuffer b = archive.duplicate();
+		b.position(entry[0]);
+		b.limit(entry[0]+entry[1]);
+		return b.slice();
+	}
+
+	/** How many classes have been decoded so far */
+	public int getNumberOfLoadedClasses() {
+		return loaded.size();
+	}
+}
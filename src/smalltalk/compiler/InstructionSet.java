@@ -0,0 +1,50 @@
+package smalltalk.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** The instructions that code of one build can use: those of
+ *  {@link Bytecode} plus the superinstructions the build defined, which
+ *  get opcodes from {@link Bytecode#FIRST_SUPERINSTRUCTION} on in order.
+ *  Immutable, so builds running at the same time in one process, as in
+ *  {@link STCDaemon}, can't disturb each other's. See
+ *  {@link Superinstructions}.
+ */
+public class InstructionSet {
+	/** No superinstructions; what code is in until STC fuses it */
+	public static final InstructionSet BASE = new InstructionSet(Collections.emptyList());
+
+	protected final Bytecode.Instruction[] instructions;
+	/** Component opcodes of the superinstructions in opcode order */
+	protected final List<short[]> superinstructions;
+
+	public InstructionSet(List<short[]> superinstructions) {
+		if ( superinstructions.size()>Bytecode.MAX_SUPERINSTRUCTIONS ) {
+			throw new IllegalArgumentException("too many superinstructions: "+superinstructions.size());
+		}
+		instructions = Arrays.copyOf(Bytecode.instructions, Bytecode.FIRST_SUPERINSTRUCTION+Bytecode.MAX_SUPERINSTRUCTIONS);
+		List<short[]> defined = new ArrayList<>();
+		for (int i = 0; i < superinstructions.size(); i++) {
+			instructions[Bytecode.FIRST_SUPERINSTRUCTION+i] = Bytecode.fuse(superinstructions.get(i));
+			defined.add(superinstructions.get(i).clone());
+		}
+		this.superinstructions = Collections.unmodifiableList(defined);
+	}
+
+	/** Return the instruction for opcode or null if there's no such instruction */
+	public Bytecode.Instruction get(int opcode) {
+		return opcode>0 && opcode<instructions.length ? instructions[opcode] : null;
+	}
+
+	public List<short[]> getSuperinstructions() {
+		return superinstructions;
+	}
+
+	/** Return the components of superinstruction opcode or null if it isn't one */
+	public short[] superinstruction(int opcode) {
+		int i = opcode-Bytecode.FIRST_SUPERINSTRUCTION;
+		return i>=0 && i<superinstructions.size() ? superinstructions.get(i) : null;
+	}
+}
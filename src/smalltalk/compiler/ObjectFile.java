@@ -0,0 +1,360 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.FieldSymbol;
+import org.antlr.symtab.MethodSymbol;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** A compiled class as loaded from a .sto file in either
+ *  {@link ObjectFormat}. The binary format, all integers big-endian and
+ *  all strings an int byte length followed by UTF-8:
+ *
+ *  <pre>
+ *  class:    int MAGIC, short VERSION, int nspecial, string specialSelector...,
+ *            int nsuper, superinstruction..., string name, byte hasSuperClass,
+ *            [string superClassName], int instanceSize,
+ *            int nliterals, string literal..., int nfields, string field...,
+ *            int nmethods, block...
+ *  block:    string name, string qualifiedName, byte flags (1=class method,
+ *            2=primitive, 4=clean, 8=copying, 16=full closure),
+ *            [string primitiveName], int nargs, int nlocals,
+ *            int ncacheSlots, int ncode, byte bytecode..., int nblocks, block...
+ *  superinstruction: byte n, byte opcode...
+ *  </pre>
+ *
+ *  Bytecode is stored raw; in JSON every byte is a decimal number.
+ *  JSON has VERSION as "version". Readers must reject a VERSION they
+ *  don't know.
+ *
+ *  The special selectors are {@link Bytecode#specialSelectors}: the
+ *  selector that special send opcodes SEND_ADD, SEND_SUB, ... in order
+ *  send when the VM can't apply a primitive directly. They needn't be in
+ *  the literals. Classes with no special sends have none; in JSON
+ *  there's no "specialSelectors" then. Superinstructions are the opcode
+ *  sequences that opcodes {@link Bytecode#FIRST_SUPERINSTRUCTION} on
+ *  stand for in the class's {@link STClass#instructionSet}, if STC fused
+ *  any of its code; see {@link Superinstructions}. Without them JSON has
+ *  no "superinstructions" either.
+ *
+ *  A block's ncacheSlots is its number of SEND, SEND_SUPER and special
+ *  send sites, so a VM can allocate an inline cache per site on loading.
+ *  Site i is the i-th send in the bytecode; see {@link Bytecode#sendSites}.
+ *
+ *  Nested blocks have one of the closure flags, methods none; see
+ *  {@link BlockClassifier}. In JSON it's "closure": "clean" and so on.
+ */
+public class ObjectFile {
+	public static final int MAGIC = 0x53544F42; // "STOB"
+	public static final short VERSION = 8; // 2 added special selectors, 3 superinstructions, 4 ncacheSlots, 5 closure kinds, 6 JSON version, selectors only if used, 7 special send cache slots, 8 superinstructions only if used
+
+	public static final int CLASS_METHOD = 1;
+	public static final int PRIMITIVE = 2;
+	public static final int CLEAN = 4;
+	public static final int COPYING = 8;
+	public static final int FULL = 16;
+
+	public static class Block {
+		public final String name;
+		public final String qualifiedName;
+		public final boolean isClassMethod;
+		public final String primitiveName;
+		/** null for methods */
+		public final STCompiledBlock.ClosureKind closureKind;
+		public final int nargs;
+		public final int nlocals;
+		public final int ncacheSlots;
+		public final byte[] bytecode;
+		public final Block[] blocks;
+
+		public Block(String name, String qualifiedName, boolean isClassMethod, String primitiveName,
+		             STCompiledBlock.ClosureKind closureKind, int nargs, int nlocals, int ncacheSlots, byte[] bytecode, Block[] blocks)
+		{
+			this.name = name;
+			this.qualifiedName = qualifiedName;
+			this.isClassMethod = isClassMethod;
+			this.primitiveName = primitiveName;
+			this.closureKind = closureKind;
+			this.nargs = nargs;
+			this.nlocals = nlocals;
+			this.ncacheSlots = ncacheSlots;
+			this.bytecode = bytecode;
+			this.blocks = blocks;
+		}
+
+		@Override
+		public String toString() {
+			return qualifiedName+(isClassMethod ? " static" : "")+
+				(primitiveName!=null ? " <"+primitiveName+">" : "")+
+				(closureKind!=null ? " "+closureKind : "")+
+				" nargs="+nargs+" nlocals="+nlocals+" ncacheSlots="+ncacheSlots+" "+Arrays.toString(bytecode)+
+				" blocks="+Arrays.toString(blocks);
+		}
+	}
+
+	public final String[] specialSelectors;
+	public final short[][] superinstructions;
+	public final String name;
+	public final String superClassName;
+	public final int instanceSize;
+	public final String[] literals;
+	public final String[] fields;
+	public final Block[] methods;
+
+	public ObjectFile(String[] specialSelectors, short[][] superinstructions,
+	                  String name, String superClassName, int instanceSize,
+	                  String[] literals, String[] fields, Block[] methods)
+	{
+		this.specialSelectors = specialSelectors;
+		this.superinstructions = superinstructions;
+		this.name = name;
+		this.superClassName = superClassName;
+		this.instanceSize = instanceSize;
+		this.literals = literals;
+		this.fields = fields;
+		this.methods = methods;
+	}
+
+	public static byte[] writeBinary(STClass cl) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		try ( DataOutputStream out = new DataOutputStream(bytes) ) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			String[] specialSelectors = cl.usesSpecialSends ? Bytecode.specialSelectors : new String[0];
+			out.writeInt(specialSelectors.length);
+			for (String selector : specialSelectors) {
+				writeString(out, selector);
+			}
+			out.writeInt(cl.instructionSet.getSuperinstructions().size());
+			for (short[] seq : cl.instructionSet.getSuperinstructions()) {
+				out.writeByte(seq.length);
+				for (short op : seq) out.writeByte(op);
+			}
+			writeString(out, cl.getName());
+			out.writeByte(cl.getSuperClassName()!=null ? 1 : 0);
+			if ( cl.getSuperClassName()!=null ) {
+				writeString(out, cl.getSuperClassName());
+			}
+			out.writeInt(cl.getInstanceSize());
+			String[] literals = cl.stringTable.toArray();
+			out.writeInt(literals.length);
+			for (String literal : literals) {
+				writeString(out, literal);
+			}
+			out.writeInt(cl.getDefinedFields().size());
+			for (FieldSymbol f : cl.getDefinedFields()) {
+				writeString(out, f.getName());
+			}
+			out.writeInt(cl.getDefinedMethods().size());
+			for (MethodSymbol m : cl.getDefinedMethods()) {
+				writeBlock(out, ((STMethod) m).compiledBlock);
+			}
+		}
+		catch (IOException ioe) { // can't happen writing to memory
+			throw new UncheckedIOException(ioe);
+		}
+		return bytes.toByteArray();
+	}
+
+	protected static void writeBlock(DataOutputStream out, STCompiledBlock blk) throws IOException {
+		writeString(out, blk.name);
+		writeString(out, blk.qualifiedName);
+		out.writeByte((blk.isClassMethod ? CLASS_METHOD : 0) | (blk.primitiveName!=null ? PRIMITIVE : 0) |
+		              closureFlag(blk.closureKind));
+		if ( blk.primitiveName!=null ) {
+			writeString(out, blk.primitiveName);
+		}
+		out.writeInt(blk.nargs());
+		out.writeInt(blk.nlocals());
+		out.writeInt(blk.ncacheSlots());
+		byte[] code = blk.bytecode!=null ? blk.bytecode : new byte[0];
+		out.writeInt(code.length);
+		out.write(code);
+		STCompiledBlock[] blocks = blk.blocks!=null ? blk.blocks : new STCompiledBlock[0];
+		out.writeInt(blocks.length);
+		for (STCompiledBlock nested : blocks) {
+			writeBlock(out, nested);
+		}
+	}
+
+	protected static int closureFlag(STCompiledBlock.ClosureKind kind) {
+		if ( kind==null ) return 0;
+		switch ( kind ) {
+			case CLEAN : return CLEAN;
+			case COPYING : return COPYING;
+			default : return FULL;
+		}
+	}
+
+	protected static STCompiledBlock.ClosureKind closureKind(int flags) {
+		if ( (flags & CLEAN)!=0 ) return STCompiledBlock.ClosureKind.CLEAN;
+		if ( (flags & COPYING)!=0 ) return STCompiledBlock.ClosureKind.COPYING;
+		if ( (flags & FULL)!=0 ) return STCompiledBlock.ClosureKind.FULL;
+		return null;
+	}
+
+	protected static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+
+	/** Decode a binary object file; buf is left positioned after it */
+	public static ObjectFile readBinary(ByteBuffer buf) {
+		try {
+			if ( buf.getInt()!=MAGIC ) {
+				throw new IllegalArgumentException("not a binary object file");
+			}
+			short version = buf.getShort();
+			if ( version!=VERSION ) {
+				throw new IllegalArgumentException("unsupported object file version "+version);
+			}
+			String[] specialSelectors = new String[buf.getInt()];
+			for (int i = 0; i < specialSelectors.length; i++) {
+				specialSelectors[i] = readString(buf);
+			}
+			short[][] superinstructions = new short[buf.getInt()][];
+			for (int i = 0; i < superinstructions.length; i++) {
+				superinstructions[i] = new short[buf.get()];
+				for (int j = 0; j < superinstructions[i].length; j++) {
+					superinstructions[i][j] = buf.get();
+				}
+			}
+			String name = readString(buf);
+			String superClassName = buf.get()!=0 ? readString(buf) : null;
+			int instanceSize = buf.getInt();
+			String[] literals = new String[buf.getInt()];
+			for (int i = 0; i < literals.length; i++) {
+				literals[i] = readString(buf);
+			}
+			String[] fields = new String[buf.getInt()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = readString(buf);
+			}
+			Block[] methods = readBlocks(buf);
+			return new ObjectFile(specialSelectors, superinstructions, name, superClassName, instanceSize, literals, fields, methods);
+		}
+		catch (BufferUnderflowException | NegativeArraySizeException e) {
+			throw new IllegalArgumentException("truncated or corrupt object file", e);
+		}
+	}
+
+	protected static Block[] readBlocks(ByteBuffer buf) {
+		Block[] blocks = new Block[buf.getInt()];
+		for (int i = 0; i < blocks.length; i++) {
+			String name = readString(buf);
+			String qualifiedName = readString(buf);
+			int flags = buf.get();
+			String primitiveName = (flags & PRIMITIVE)!=0 ? readString(buf) : null;
+			int nargs = buf.getInt();
+			int nlocals = buf.getInt();
+			int ncacheSlots = buf.getInt();
+			byte[] bytecode = new byte[buf.getInt()];
+			buf.get(bytecode);
+			blocks[i] = new Block(name, qualifiedName, (flags & CLASS_METHOD)!=0, primitiveName,
+			                      closureKind(flags), nargs, nlocals, ncacheSlots, bytecode, readBlocks(buf));
+		}
+		return blocks;
+	}
+
+	protected static String readString(ByteBuffer buf) {
+		int n = buf.getInt();
+		if ( !buf.hasArray() ) { // e.g., mapped file
+			byte[] utf8 = new byte[n];
+			buf.get(utf8);
+			return new String(utf8, StandardCharsets.UTF_8);
+		}
+		if ( n<0 || n>buf.remaining() ) throw new BufferUnderflowException();
+		String s = new String(buf.array(), buf.arrayOffset()+buf.position(), n, StandardCharsets.UTF_8);
+		buf.position(buf.position()+n);
+		return s;
+	}
+
+	/** Decode the JSON from {@link STClass#serialize()} */
+	public static ObjectFile fromJSON(JsonObject json) {
+		if ( !json.containsKey("version") ) {
+			throw new IllegalArgumentException("object file has no version; it predates version "+VERSION);
+		}
+		try {
+			int version = json.getInt("version");
+			if ( version!=VERSION ) {
+				throw new IllegalArgumentException("unsupported object file version "+version);
+			}
+			return new ObjectFile(json.containsKey("specialSelectors") ?
+			                          strings(json.getJsonArray("specialSelectors")) : new String[0],
+			                      json.containsKey("superinstructions") ?
+			                          opcodeSequences(json.getJsonArray("superinstructions")) : new short[0][],
+			                      json.getString("name"),
+			                      json.getString("superClassName", null),
+			                      json.getInt("instanceSize", json.getJsonArray("fields").size()),
+			                      strings(json.getJsonArray("literals")),
+			                      strings(json.getJsonArray("fields")),
+			                      blocks(json.getJsonArray("methods")));
+		}
+		catch (NullPointerException | ClassCastException e) { // missing or mistyped key
+			throw new IllegalArgumentException("corrupt object file", e);
+		}
+	}
+
+	protected static String[] strings(JsonArray a) {
+		String[] strings = new String[a.size()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = a.getString(i);
+		}
+		return strings;
+	}
+
+	protected static short[][] opcodeSequences(JsonArray a) {
+		short[][] seqs = new short[a.size()][];
+		for (int i = 0; i < seqs.length; i++) {
+			JsonArray seq = a.getJsonArray(i);
+			seqs[i] = new short[seq.size()];
+			for (int j = 0; j < seqs[i].length; j++) {
+				seqs[i][j] = (short)seq.getInt(j);
+			}
+		}
+		return seqs;
+	}
+
+	protected static Block[] blocks(JsonArray a) {
+		Block[] blocks = new Block[a.size()];
+		for (int i = 0; i < blocks.length; i++) {
+			JsonObject b = a.getJsonObject(i);
+			JsonArray code = b.getJsonArray("bytecode");
+			byte[] bytecode = new byte[code.size()];
+			for (int j = 0; j < bytecode.length; j++) {
+				bytecode[j] = (byte)((JsonNumber) code.get(j)).intValue();
+			}
+			blocks[i] = new Block(b.getString("name"), b.getString("qualifiedName"),
+			                      b.getBoolean("isClassMethod"), b.getString("primitiveName", null),
+			                      b.containsKey("closure") ?
+			                          STCompiledBlock.ClosureKind.valueOf(b.getString("closure").toUpperCase()) : null,
+			                      b.getInt("nargs"), b.getInt("nlocals"), b.getInt("ncacheSlots"), bytecode,
+			                      blocks(b.getJsonArray("blocks")));
+		}
+		return blocks;
+	}
+
+	@Override
+	public String toString() {
+		return "class "+name+(superClassName!=null ? " : "+superClassName : "")+
+			" specialSelectors="+Arrays.toString(specialSelectors)+
+			" superinstructions="+Arrays.deepToString(superinstructions)+
+			" instanceSize="+instanceSize+
+			" literals="+Arrays.toString(literals)+
+			" fields="+Arrays.toString(fields)+
+			" methods="+Arrays.toString(methods);
+	}
+}
@@ -0,0 +1,81 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STClass;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/** How STC encodes a compiled class in its .sto file; -format json|binary */
+public enum ObjectFormat {
+	/** {@link STClass#serialize()} as text */
+	JSON {
+		@Override
+		public void write(STClass cl, OutputStream out) {
+			try ( JsonGenerator gen = Json.createGenerator(out) ) {
+				cl.serialize(gen);
+			}
+		}
+
+		@Override
+		public ObjectFile decode(byte[] obj) {
+			try ( JsonReader reader = Json.createReader(new ByteArrayInputStream(obj)) ) {
+				return ObjectFile.fromJSON(reader.readObject());
+			}
+		}
+	},
+	/** See {@link ObjectFile} */
+	BINARY {
+		@Override
+		public byte[] encode(STClass cl) {
+			return ObjectFile.writeBinary(cl);
+		}
+
+		@Override
+		public void write(STClass cl, OutputStream out) throws IOException {
+			try ( OutputStream o = out ) {
+				o.write(encode(cl));
+			}
+		}
+
+		@Override
+		public ObjectFile decode(byte[] obj) {
+			return ObjectFile.readBinary(ByteBuffer.wrap(obj));
+		}
+	};
+
+	public byte[] encode(STClass cl) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		try {
+			write(cl, bytes);
+		}
+		catch (IOException ioe) { // can't happen writing to memory
+			throw new UncheckedIOException(ioe);
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Write cl's object file to out and close it */
+	public abstract void write(STClass cl, OutputStream out) throws IOException;
+
+	public abstract ObjectFile decode(byte[] obj);
+
+	/** Decode obj in whichever format it's in */
+	public static ObjectFile load(byte[] obj) {
+		return of(obj).decode(obj);
+	}
+
+	public static ObjectFormat of(byte[] obj) {
+		return obj.length>=4 && ByteBuffer.wrap(obj).getInt()==ObjectFile.MAGIC ? BINARY : JSON;
+	}
+
+	public static ObjectFormat fromOption(String name) {
+		return valueOf(name.toUpperCase());
+	}
+}
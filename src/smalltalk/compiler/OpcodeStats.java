@@ -0,0 +1,141 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.MethodSymbol;
+import org.antlr.symtab.Symbol;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Count opcode bigrams and trigrams, such as push_local_0;send_add, in
+ *  the compiled methods and blocks of an image. Sequences stay within
+ *  straight-line code: no instruction in one is a jump, only the first can
+ *  be a jump target and only the last can return. {@link Superinstructions}
+ *  fuses the most frequent ones.
+ *
+ *  $ java smalltalk.compiler.OpcodeStats [-O0|-O1|-O2] [-top n] file.st|dir ...
+ */
+public class OpcodeStats {
+	public static final int MIN_LENGTH = 2;
+	public static final int MAX_LENGTH = 3;
+
+	/** Opcode sequence -> times seen */
+	public final Map<List<Short>,Long> counts = new HashMap<>();
+
+	public long instructions;
+
+	public void add(STSymbolTable symtab) {
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				for (MethodSymbol m : ((STClass)s).getDefinedMethods()) {
+					add(((STMethod)m).compiledBlock);
+				}
+			}
+		}
+	}
+
+	/** Count blk and the blocks nested in it */
+	public void add(STCompiledBlock blk) {
+		if ( blk.bytecode!=null ) add(blk.bytecode);
+		if ( blk.blocks!=null ) {
+			for (STCompiledBlock nested : blk.blocks) add(nested);
+		}
+	}
+
+	public void add(byte[] bytecode) {
+		List<PeepholeOptimizer.Instr> code = PeepholeOptimizer.decode(bytecode);
+		PeepholeOptimizer.markJumpTargets(code);
+		instructions += code.size();
+		for (int i = 0; i < code.size(); i++) {
+			for (int n = MIN_LENGTH; n <= MAX_LENGTH && straightLine(code, i, n); n++) {
+				List<Short> seq = new ArrayList<>(n);
+				for (int j = i; j < i+n; j++) seq.add(code.get(j).opcode);
+				counts.merge(seq, 1L, Long::sum);
+			}
+		}
+	}
+
+	/** Can code[i..i+n) run as a single instruction? */
+	protected static boolean straightLine(List<PeepholeOptimizer.Instr> code, int i, int n) {
+		if ( i+n>code.size() ) return false;
+		for (int j = i; j < i+n; j++) {
+			PeepholeOptimizer.Instr instr = code.get(j);
+			if ( instr.isJump() || (j>i && instr.isJumpTarget()) ) return false;
+			if ( j<i+n-1 && (instr.opcode==Bytecode.RETURN || instr.opcode==Bytecode.BLOCK_RETURN) ) return false;
+		}
+		return true;
+	}
+
+	/** Return the n most frequent sequences of length, most frequent first */
+	public List<Map.Entry<List<Short>,Long>> top(int n, int length) {
+		List<Map.Entry<List<Short>,Long>> seqs = new ArrayList<>();
+		for (Map.Entry<List<Short>,Long> e : counts.entrySet()) {
+			if ( e.getKey().size()==length ) seqs.add(e);
+		}
+		seqs.sort(byCount());
+		return seqs.subList(0, Math.min(n, seqs.size()));
+	}
+
+	/** Most frequent first, ties by name so output doesn't depend on hashing */
+	protected static Comparator<Map.Entry<List<Short>,Long>> byCount() {
+		return Comparator.<Map.Entry<List<Short>,Long>>comparingLong(e -> -e.getValue())
+			.thenComparing(e -> toString(e.getKey()));
+	}
+
+	public static String toString(List<Short> seq) {
+		StringBuilder buf = new StringBuilder();
+		for (short op : seq) {
+			if ( buf.length()>0 ) buf.append(';');
+			Bytecode.Instruction I = Bytecode.instructions[op];
+			buf.append(I!=null ? I.name : String.valueOf(op));
+		}
+		return buf.toString();
+	}
+
+	public void print(PrintStream out, int n) {
+		out.printf("%d instructions%n", instructions);
+		for (int length = MIN_LENGTH; length <= MAX_LENGTH; length++) {
+			out.printf("top %d of length %d:%n", n, length);
+			for (Map.Entry<List<Short>,Long> e : top(n, length)) {
+				out.printf("%8d %5.1f%%  %s%n", e.getValue(), 100.0*e.getValue()/Math.max(1, instructions),
+				           toString(e.getKey()));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int optimizationLevel = 0;
+		int n = 20;
+		List<String> fileNames = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch ( args[i] ) {
+				case "-O0" :
+				case "-O1" :
+				case "-O2" :
+					optimizationLevel = args[i].charAt(2) - '0';
+					break;
+				case "-top" :
+					n = Integer.parseInt(args[++i]);
+					break;
+				default :
+					fileNames.addAll(STC.findSourceFiles(args[i]));
+					break;
+			}
+		}
+		if ( fileNames.isEmpty() ) {
+			System.err.println("$ java smalltalk.compiler.OpcodeStats [-O0|-O1|-O2] [-top n] file.st|dir ...");
+			System.exit(1);
+		}
+		OpcodeStats stats = new OpcodeStats();
+		stats.add(STC.compile(new STSymbolTable(), fileNames, STC.options(false, optimizationLevel),
+		                      Runtime.getRuntime().availableProcessors(), null, null));
+		stats.print(System.out, n);
+	}
+}
@@ -0,0 +1,309 @@
+package smalltalk.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Rewrites the bytecode of a method or block with a list of {@link Rule}s
+ *  until none applies. {@link CodeGenerator} runs it on every
+ *  {@link smalltalk.compiler.symbols.STCompiledBlock} at -O1.
+ *
+ *  Bytecode is decoded into a list of {@link Instr}. An ADDR (jump) operand
+ *  points at the instruction it jumps to, not at an address, so rules can
+ *  remove and insert instructions freely; addresses are recomputed when the
+ *  list is encoded again. Removing a jump target moves its jumps to the
+ *  next instruction that's left.
+ *
+ *  One optimizer can be shared by compilers running in parallel; the
+ *  savings counters are the only state it updates. Its
+ *  {@link #instructionSet} says which superinstructions code may contain.
+ */
+public class PeepholeOptimizer {
+	/** A rewrite at one position in the instruction list */
+	public interface Rule {
+		/** Try to rewrite code starting at code.get(i); return true if code changed */
+		boolean apply(List<Instr> code, int i);
+	}
+
+	public static class Instr {
+		public final short opcode;
+		/** Operand values in order; ADDR operands are 0, see {@link #targets} */
+		public final int[] operands;
+		/** Instruction each ADDR operand jumps to; null for other operands */
+		public final Instr[] targets;
+		/** Set by the optimizer before each pass over the rules */
+		boolean isJumpTarget;
+
+		public Instr(short opcode, int... operands) {
+			this.opcode = opcode;
+			this.operands = operands;
+			this.targets = new Instr[operands.length];
+		}
+
+		public boolean isJump() {
+			for (Instr t : targets) {
+				if ( t!=null ) return true;
+			}
+			return false;
+		}
+
+		public boolean isJumpTarget() {
+			return isJumpTarget;
+		}
+
+		@Override
+		public String toString() {
+			Bytecode.Instruction I = Bytecode.instructions[opcode];
+			return (I!=null ? I.name : String.valueOf(opcode))+
+				(operands.length>0 ? " "+Arrays.toString(operands) : "");
+		}
+	}
+
+	/** Drop instructions after RETURN, BLOCK_RETURN or JUMP that no jump
+	 *  reaches, such as the POP SELF RETURN that ends a method whose last
+	 *  statement is ^expr.
+	 */
+	public static final Rule DEAD_CODE = (code, i) -> {
+		short op = code.get(i).opcode;
+		if ( op!=Bytecode.RETURN && op!=Bytecode.BLOCK_RETURN && op!=Bytecode.JUMP ) return false;
+		int end = i+1;
+		while ( end<code.size() && !code.get(end).isJumpTarget() ) end++;
+		if ( end==i+1 ) return false;
+		remove(code, i+1, end);
+		return true;
+	};
+
+	/** Drop a push with no side effects whose value is popped right away.
+	 *  PUSH_GLOBAL stays as it can fail at run time.
+	 */
+	public static final Rule PUSH_POP = (code, i) -> {
+		if ( i+1>=code.size() || !isPureLoad(code.get(i).opcode) ) return false;
+		Instr pop = code.get(i+1);
+		if ( pop.opcode!=Bytecode.POP || pop.isJumpTarget() ) return false;
+		remove(code, i, i+2);
+		return true;
+	};
+
+	public final List<Rule> rules = new ArrayList<>(Arrays.asList(DEAD_CODE, PUSH_POP));
+
+	public final InstructionSet instructionSet;
+
+	public final AtomicLong blocksOptimized = new AtomicLong();
+	public final AtomicLong bytesBefore = new AtomicLong();
+	public final AtomicLong bytesSaved = new AtomicLong();
+	public final AtomicLong instructionsSaved = new AtomicLong();
+
+	public PeepholeOptimizer() {
+		this(InstructionSet.BASE);
+	}
+
+	public PeepholeOptimizer(InstructionSet instructionSet) {
+		this.instructionSet = instructionSet;
+	}
+
+	public void addRule(Rule rule) {
+		rules.add(rule);
+	}
+
+	/** Return optimized bytecode; bytecode itself is not changed */
+	public byte[] optimize(byte[] bytecode) {
+		if ( bytecode==null || bytecode.length==0 ) return bytecode;
+		List<Instr> code = decode(bytecode, instructionSet);
+		int ninstr = code.size();
+		boolean rewritten = false;
+		boolean changed;
+		do {
+			changed = false;
+			markJumpTargets(code);
+			for (int i = 0; i < code.size(); i++) {
+				for (Rule rule : rules) {
+					if ( rule.apply(code, i) ) {
+						changed = true;
+						markJumpTargets(code);
+					}
+				}
+			}
+			rewritten |= changed;
+		} while ( changed );
+		byte[] optimized = rewritten ? encode(code, instructionSet) : bytecode;
+		blocksOptimized.incrementAndGet();
+		bytesBefore.addAndGet(bytecode.length);
+		bytesSaved.addAndGet(bytecode.length - optimized.length);
+		instructionsSaved.addAndGet(ninstr - code.size());
+		return optimized;
+	}
+
+	/** True for pushes that can't fail or have side effects */
+	public static boolean isPureLoad(short opcode) {
+		if ( opcode>=Bytecode.PUSH_LOCAL_0 && opcode<Bytecode.STORE_LOCAL_0 ||
+			 opcode>=Bytecode.PUSH_FIELD_0 && opcode<Bytecode.STORE_FIELD_0 ||
+			 opcode>=Bytecode.PUSH_INT_M1 && opcode<=Bytecode.PUSH_BYTE )
+		{
+			return true;
+		}
+		switch ( opcode ) {
+			case Bytecode.NIL :
+			case Bytecode.SELF :
+			case Bytecode.TRUE :
+			case Bytecode.FALSE :
+			case Bytecode.PUSH_CHAR :
+			case Bytecode.PUSH_INT :
+			case Bytecode.PUSH_FLOAT :
+			case Bytecode.PUSH_FIELD :
+			case Bytecode.PUSH_LOCAL :
+			case Bytecode.PUSH_LITERAL :
+			case Bytecode.BLOCK :
+			case Bytecode.PUSH_CLEAN_BLOCK :
+				return true;
+			default :
+				return false;
+		}
+	}
+
+	/** Replace code[from..to) with instr, moving jumps to code[from] to instr */
+	public static void replace(List<Instr> code, int from, int to, Instr instr) {
+		Instr first = code.get(from);
+		for (Instr jump : code) {
+			for (int i = 0; i < jump.targets.length; i++) {
+				if ( jump.targets[i]==first ) jump.targets[i] = instr;
+			}
+		}
+		code.subList(from, to).clear();
+		code.add(from, instr);
+	}
+
+	/** Remove code[from..to), moving jumps into that range to code[to] */
+	public static void remove(List<Instr> code, int from, int to) {
+		List<Instr> removed = code.subList(from, to);
+		Instr next = to<code.size() ? code.get(to) : null;
+		for (Instr instr : code) {
+			for (int i = 0; i < instr.targets.length; i++) {
+				if ( instr.targets[i]!=null && removed.contains(instr.targets[i]) ) {
+					if ( next==null ) {
+						throw new IllegalStateException("jump to removed code at end of block");
+					}
+					instr.targets[i] = next;
+				}
+			}
+		}
+		removed.clear();
+	}
+
+	public static List<Instr> decode(byte[] bytecode) {
+		return decode(bytecode, InstructionSet.BASE);
+	}
+
+	public static List<Instr> decode(byte[] bytecode, InstructionSet set) {
+		List<Instr> code = new ArrayList<>();
+		Map<Integer,Instr> byAddress = new HashMap<>();
+		Map<Instr,int[]> jumps = new HashMap<>(); // jump -> address per operand, -1 if not ADDR
+		int ip = 0;
+		while ( ip<bytecode.length ) {
+			int start = ip;
+			boolean wide = bytecode[ip]==Bytecode.WIDE;
+			if ( wide ) ip++;
+			short opcode = bytecode[ip++];
+			Bytecode.Instruction I = set.get(opcode);
+			if ( I==null ) {
+				throw new IllegalArgumentException("no such instruction "+opcode+" at address "+start);
+			}
+			int[] operands = new int[operandCount(I)];
+			int[] addrs = null;
+			for (int i = 0; i < operands.length; i++) {
+				int size = operandSize(I.type[i], wide);
+				operands[i] = size==4 ? Bytecode.getInt(bytecode, ip) :
+					size==2 ? Bytecode.getShort(bytecode, ip) : bytecode[ip];
+				if ( I.type[i]==Bytecode.OperandType.ADDR ) {
+					if ( addrs==null ) {
+						addrs = new int[operands.length];
+						Arrays.fill(addrs, -1);
+					}
+					addrs[i] = operands[i];
+					operands[i] = 0;
+				}
+				ip += size;
+			}
+			Instr instr = new Instr(opcode, operands);
+			if ( addrs!=null ) jumps.put(instr, addrs);
+			byAddress.put(start, instr);
+			code.add(instr);
+		}
+		for (Map.Entry<Instr,int[]> jump : jumps.entrySet()) {
+			int[] addrs = jump.getValue();
+			for (int i = 0; i < addrs.length; i++) {
+				if ( addrs[i]<0 ) continue;
+				Instr target = byAddress.get(addrs[i]);
+				if ( target==null ) {
+					throw new IllegalArgumentException("jump to bad address "+addrs[i]);
+				}
+				jump.getKey().targets[i] = target;
+			}
+		}
+		return code;
+	}
+
+	public static byte[] encode(List<Instr> code) {
+		return encode(code, InstructionSet.BASE);
+	}
+
+	public static byte[] encode(List<Instr> code, InstructionSet set) {
+		CodeEmitter out = new CodeEmitter();
+		Map<Instr,CodeEmitter.Label> labels = new HashMap<>();
+		for (Instr instr : code) {
+			for (Instr target : instr.targets) {
+				if ( target!=null ) labels.computeIfAbsent(target, t -> out.newLabel());
+			}
+		}
+		for (Instr instr : code) {
+			CodeEmitter.Label label = labels.get(instr);
+			if ( label!=null ) out.mark(label);
+			Bytecode.Instruction I = set.get(instr.opcode);
+			if ( instr.isJump() ) { // jumps have only ADDR operands
+				CodeEmitter.Label[] targets = new CodeEmitter.Label[instr.targets.length];
+				for (int i = 0; i < targets.length; i++) {
+					targets[i] = labels.get(instr.targets[i]);
+				}
+				out.emitJump(instr.opcode, targets);
+				continue;
+			}
+			boolean wide = false;
+			for (int i = 0; i < instr.operands.length; i++) {
+				if ( isShort(I.type[i]) && instr.operands[i]>Code.MAX_SHORT_OPERAND ) wide = true;
+			}
+			if ( wide ) out.emit(Bytecode.WIDE);
+			out.emit(instr.opcode);
+			for (int i = 0; i < instr.operands.length; i++) {
+				Code.addOperand(out, instr.operands[i], operandSize(I.type[i], wide));
+			}
+		}
+		return out.bytes();
+	}
+
+	protected static void markJumpTargets(List<Instr> code) {
+		for (Instr instr : code) {
+			instr.isJumpTarget = false;
+		}
+		for (Instr instr : code) {
+			for (Instr target : instr.targets) {
+				if ( target!=null ) target.isJumpTarget = true;
+			}
+		}
+	}
+
+	protected static int operandCount(Bytecode.Instruction I) {
+		int n = 0;
+		while ( n<I.n && I.type[n]!=Bytecode.OperandType.NONE ) n++;
+		return n;
+	}
+
+	protected static int operandSize(Bytecode.OperandType type, boolean wide) {
+		return wide && isShort(type) ? 4 : type.sizeInBytes;
+	}
+
+	protected static boolean isShort(Bytecode.OperandType type) {
+		return type==Bytecode.OperandType.SHORT || type==Bytecode.OperandType.LITERAL;
+	}
+}
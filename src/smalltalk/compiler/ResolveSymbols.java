@@ -1,13 +1,18 @@
 package smalltalk.compiler;
 
+import org.antlr.symtab.Scope;
 import org.antlr.symtab.Symbol;
 import org.antlr.symtab.VariableSymbol;
 import org.antlr.v4.runtime.Token;
+import smalltalk.compiler.symbols.STBlock;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.VariableAddress;
 
-/** Set the symbol references in the parse tree nodes for ID and lvalues.
- *  Check that the left-hand side of assignments are variables. Other
- *  unknown symbols could simply be references to type names that will
- *  be compiled later. Mostly done to verify scopes/symbols in
+/** Set the symbol references in the parse tree nodes for ID and lvalues,
+ *  along with the {@link VariableAddress} the code generator uses. Check
+ *  that the left-hand side of assignments are variables. Other unknown
+ *  symbols could simply be references to type names that will be
+ *  compiled later. Mostly done to verify scopes/symbols in
  *  {@see smalltalk.compiler.test.TestIDLookup}.
  */
 public class ResolveSymbols extends SetScope {
@@ -18,14 +23,23 @@ public class ResolveSymbols extends SetScope {
 	@Override
 	public void enterId(SmalltalkParser.IdContext ctx) {
 		ctx.sym = currentScope.resolve(ctx.getStart().getText());
+		ctx.addr = resolveAddress(currentScope, ctx.getStart().getText());
 	}
 
 	@Override
 	public void enterLvalue(SmalltalkParser.LvalueContext ctx) {
 		ctx.sym = checkIDExists(ctx.getStart());
+		if ( ctx.sym!=null ) {
+			ctx.addr = resolveAddress(currentScope, ctx.getStart().getText());
+		}
 	}
 
 	public VariableSymbol checkIDExists(Token ID) {
+		return checkIDExists(compiler, currentScope, ID);
+	}
+
+	/** Shared with {@link ResolvingCodeGenerator}, which resolves as it generates code */
+	public static VariableSymbol checkIDExists(Compiler compiler, Scope currentScope, Token ID) {
 		Symbol sym = currentScope.resolve(ID.getText());
 		if ( sym==null ) {
 			compiler.error("unknown variable "+ID.getText()+" in "+currentScope.toQualifierString(">>"));
@@ -40,4 +54,29 @@ public class ResolveSymbols extends SetScope {
 		}
 		return (VariableSymbol)sym;
 	}
+
+	/** Find name starting in scope and moving outwards: a local or argument
+	 *  of a block or method, then a field of the enclosing class, else a
+	 *  global. Depth counts the blocks/methods we move out of.
+	 */
+	public static VariableAddress resolveAddress(Scope scope, String name) {
+		int depth = 0;
+		for (Scope s = scope; s!=null; s = s.getEnclosingScope()) {
+			if ( s instanceof STBlock ) {
+				// args then locals are defined first in a block, so their
+				// definition order is their slot number
+				Symbol sym = s.getSymbol(name);
+				if ( sym instanceof VariableSymbol ) {
+					return VariableAddress.local(depth, sym.getInsertionOrderNumber());
+				}
+				depth++;
+			}
+			else if ( s instanceof STClass ) {
+				int offset = ((STClass)s).getFieldIndex(name);
+				if ( offset>=0 ) return VariableAddress.field(offset);
+				break;
+			}
+		}
+		return VariableAddress.global(name);
+	}
 }
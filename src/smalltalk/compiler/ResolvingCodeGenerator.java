@@ -0,0 +1,32 @@
+package smalltalk.compiler;
+
+/** A code generator that also does the job of {@link ResolveSymbols}:
+ *  it sets the symbol references for ID and lvalue nodes as it reaches
+ *  them. The code generator already tracks the current scope, so this
+ *  saves a full tree walk, and the scope push/pop of {@link SetScope},
+ *  after {@link DefineSymbols} has run.
+ */
+public class ResolvingCodeGenerator extends CodeGenerator {
+    public ResolvingCodeGenerator(Compiler compiler) {
+        super(compiler);
+    }
+
+    @Override
+    public Code visitAssign(SmalltalkParser.AssignContext ctx) {
+        // resolve lvalue before the right-hand side, as the tree walk would
+        ctx.lvalue().sym = ResolveSymbols.checkIDExists(compiler, currentScope, ctx.lvalue().getStart());
+        if ( ctx.lvalue().sym==null ) {
+            visit(ctx.messageExpression()); // still resolve ids on right; error already reported
+            return Code.None;
+        }
+        ctx.lvalue().addr = ResolveSymbols.resolveAddress(currentScope, ctx.lvalue().getStart().getText());
+        return super.visitAssign(ctx);
+    }
+
+    @Override
+    public Code visitId(SmalltalkParser.IdContext ctx) {
+        ctx.sym = currentScope.resolve(ctx.getStart().getText());
+        ctx.addr = ResolveSymbols.resolveAddress(currentScope, ctx.getStart().getText());
+        return super.visitId(ctx);
+    }
+}
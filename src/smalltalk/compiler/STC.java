@@ -1,17 +1,43 @@
 package smalltalk.compiler;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import org.antlr.symtab.ClassSymbol;
 import org.antlr.symtab.Symbol;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.misc.Utils;
 import smalltalk.compiler.symbols.STClass;
 import smalltalk.compiler.symbols.STSymbolTable;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /** Smalltalk compiler.
  *
@@ -25,14 +51,59 @@ import java.nio.file.Paths;
  *
  *  You can also use `java -jar /Users/parrt/.m2/repository/edu/usfca/cs652/smalltalk-compiler/1.0/smalltalk-compiler-1.0-complete.jar`
  *  and it knows the main class to execute.
+ *
+ *  STC compiles the files and directories (searched recursively for .st
+ *  files) it's given into a single symbol table, so a class in one file
+ *  can refer to a class in another, and writes a .sto file per class. Run
+ *  it without arguments for the options.
+ *
+ *  To avoid JVM startup and a cold parser on every compile, start a
+ *  {@link STCDaemon} with `stc -daemon port` and compile with
+ *  `stc -client port args...` or any client speaking its line protocol.
+ *  Clients must be able to read the daemon's token file.
  */
 public class STC {
+	public static final int DECODE_WINDOW_SIZE = 4096;
+
 	public static void main(String[] args) throws Exception {
+		if ( args.length>=2 && args[0].equals("-daemon") ) {
+			new STCDaemon(Integer.parseInt(args[1])).serve();
+			return;
+		}
+		Path cwd = Paths.get("").toAbsolutePath();
+		int rc;
+		if ( args.length>=2 && args[0].equals("-client") ) {
+			String[] stcArgs = Arrays.copyOfRange(args, 2, args.length);
+			rc = STCDaemon.request(Integer.parseInt(args[1]), cwd, stcArgs, System.out);
+		}
+		else {
+			rc = run(cwd, args, System.out, System.err);
+		}
+		if ( rc!=0 ) {
+			System.exit(rc);
+		}
+	}
+
+	/** Compile according to command-line args, resolving file names relative
+	 *  to cwd and sending messages to out and err rather than System.out/err
+	 *  so {@link STCDaemon} can run it on behalf of clients.
+	 *  Returns the process exit code.
+	 */
+	public static int run(Path cwd, String[] args, PrintStream out, PrintStream err) throws Exception {
 		int fi = 0;
 		boolean dbg = false;
 		boolean dis = false; // disassemble
-		String outputDir = ".";
-		String stFileName = null;
+		boolean speedup = false;
+		boolean incremental = false;
+		String cacheDir = null;
+		long cacheSize = 256L * 1024 * 1024;
+		ObjectFormat format = ObjectFormat.JSON;
+		String archive = null;
+		int optimizationLevel = 0;
+		int nsuper = 0;
+		int nthreads = Runtime.getRuntime().availableProcessors();
+		String outputDir = cwd.toString();
+		List<String> stFileNames = new ArrayList<>();
 
 		while (fi<args.length) {
 			switch ( args[fi] ) {
@@ -44,23 +115,150 @@ public class STC {
 					break;
 				case "-o" :
 					fi++;
-					outputDir = args[fi];
+					outputDir = resolve(cwd, args[fi]);
+					break;
+				case "-j" :
+					fi++;
+					nthreads = Integer.parseInt(args[fi]);
+					break;
+				case "-speedup" :
+					speedup = true;
+					break;
+				case "-incremental" :
+					incremental = true;
+					break;
+				case "-cache" :
+					fi++;
+					cacheDir = resolve(cwd, args[fi]);
+					break;
+				case "-cachesize" :
+					fi++;
+					cacheSize = Long.parseLong(args[fi]) * 1024 * 1024;
+					break;
+				case "-format" :
+					fi++;
+					format = ObjectFormat.fromOption(args[fi]);
+					break;
+				case "-archive" :
+					fi++;
+					archive = args[fi];
+					break;
+				case "-O0" :
+				case "-O1" :
+				case "-O2" :
+					optimizationLevel = args[fi].charAt(2) - '0';
+					break;
+				case "-super" :
+					fi++;
+					nsuper = Integer.parseInt(args[fi]);
 					break;
 				default :
-					stFileName = args[fi];
+					stFileNames.addAll(findSourceFiles(resolve(cwd, args[fi])));
 					break;
 			}
 			fi++;
 		}
 
-		if ( stFileName==null ) {
-			System.err.println("$ java smalltalk.compiler.STC [-dis] [-o outputdir] file.st");
-			System.exit(1);
+		if ( stFileNames.isEmpty() ) {
+			err.println("$ java smalltalk.compiler.STC [-dis] [-dbg] [-j n] [-speedup] [-incremental] [-cache dir [-cachesize MB]] [-format json|binary] [-archive file] [-O0|-O1|-O2] [-super n] [-o outputdir] file.st|dir ...");
+			err.println("$ java smalltalk.compiler.STC -daemon port");
+			err.println("$ java smalltalk.compiler.STC -client port [stc-args]");
+			return 1;
+		}
+		Compiler options = options(dbg, optimizationLevel);
+		options.syntaxErrors = err;
+		if ( speedup ) {
+			Compiler timing = new Compiler();
+			timing.copyOptions(options);
+			timing.peephole = new PeepholeOptimizer(); // don't count these runs' savings below
+			// warm up class loading and parser DFA
+			compile(new STSymbolTable(), stFileNames, timing, nthreads, null, null);
+			long start = System.nanoTime();
+			compile(new STSymbolTable(), stFileNames, timing, 1, null, null);
+			long serial = System.nanoTime() - start;
+			start = System.nanoTime();
+			compile(new STSymbolTable(), stFileNames, timing, nthreads, null, null);
+			long parallel = System.nanoTime() - start;
+			out.printf("%d files: serial %.1f ms, %d threads %.1f ms, speedup %.2fx%n",
+			                  stFileNames.size(), serial/1e6, nthreads, parallel/1e6,
+			                  (double)serial/parallel);
+		}
+		// disassembly needs compiled blocks for every class so it disables skipping;
+		// an archive holds every class so it can't skip classes either, and
+		// superinstructions depend on the code of every class
+		BuildManifest manifest = incremental && !dis && archive==null && nsuper==0 ?
+			BuildManifest.load(outputDir, dbg, format, options.getCodeGenOptions()) : null;
+		if ( manifest!=null ) {
+			manifest.dependencies = ConstantFolder.dependencies(options);
+		}
+		CompileCache cache = cacheDir!=null && !dis && nsuper==0 ? new CompileCache(cacheDir, cacheSize, format) : null;
+		STSymbolTable symtab = compile(new STSymbolTable(), stFileNames, options, nthreads, manifest, cache);
+		if ( nsuper>0 ) {
+			PeepholeOptimizer fuser = Superinstructions.fuse(symtab, nsuper);
+			out.printf("superinstructions: %d defined, %d dispatches and %d of %d bytes saved%n",
+			           symtab.instructionSet.getSuperinstructions().size(), fuser.instructionsSaved.get(),
+			           fuser.bytesSaved.get(), fuser.bytesBefore.get());
+		}
+		if ( archive!=null ) {
+			ImageArchive.write(Paths.get(outputDir).resolve(archive), symtab, format, cache);
+		}
+		else {
+			writeObjectFiles(outputDir, symtab, manifest, cache, format);
+		}
+		if ( manifest!=null ) {
+			manifest.save();
+		}
+		if ( cache!=null ) {
+			cache.evict();
+			out.printf("cache: %d hits, %d misses%n", cache.hits.get(), cache.misses.get());
+		}
+		if ( optimizationLevel>=1 ) {
+			PeepholeOptimizer peephole = options.peephole;
+			out.printf("peephole: %d blocks, saved %d instructions, %d of %d bytes (%.1f%%)%n",
+			           peephole.blocksOptimized.get(), peephole.instructionsSaved.get(),
+			           peephole.bytesSaved.get(), peephole.bytesBefore.get(),
+			           100.0*peephole.bytesSaved.get()/Math.max(1, peephole.bytesBefore.get()));
 		}
-		STSymbolTable symtab = compile(stFileName, dbg);
-		writeObjectFiles(outputDir, stFileName, symtab);
 		if ( dis ) {
-			disassembleOutput(outputDir, stFileName, symtab);
+			for (String stFileName : stFileNames) {
+				disassembleOutput(outputDir, Paths.get(stFileName).getFileName().toString(), symtab);
+			}
+		}
+		return 0;
+	}
+
+	/** A compiler holding the code generation options for {@link #compile(STSymbolTable, List, Compiler, int, BuildManifest, CompileCache)} */
+	public static Compiler options(boolean genDbg, int optimizationLevel) {
+		Compiler options = new Compiler();
+		options.genDbg = genDbg;
+		options.optimizationLevel = optimizationLevel;
+		options.specialSends = optimizationLevel>=1;
+		options.shortForms = optimizationLevel>=1;
+		options.cleanBlocks = optimizationLevel>=1;
+		options.foldConstants = optimizationLevel>=2;
+		options.inlineControlFlow = optimizationLevel>=2;
+		return options;
+	}
+
+	/** Resolve fileName against cwd unless that names nothing; then it might be on the CLASSPATH */
+	protected static String resolve(Path cwd, String fileName) {
+		Path path = cwd.resolve(fileName);
+		return Files.exists(path) ? path.toString() : fileName;
+	}
+
+	/** Return fileName if it's a file or all .st files under it, sorted, if it's a directory */
+	public static List<String> findSourceFiles(String fileName) throws IOException {
+		Path path = Paths.get(fileName);
+		if ( !Files.isDirectory(path) ) {
+			List<String> files = new ArrayList<>();
+			files.add(fileName);
+			return files;
+		}
+		try ( Stream<Path> paths = Files.walk(path) ) {
+			return paths.filter(p -> p.toString().endsWith(".st") && Files.isRegularFile(p))
+				        .map(Path::toString)
+				        .sorted()
+				        .collect(Collectors.toList());
 		}
 	}
 
@@ -76,12 +274,48 @@ public class STC {
 	public static void writeObjectFiles(String dir, String stFileName, STSymbolTable symtab) throws IOException {
 		for (Symbol s : symtab.GLOBALS.getSymbols()) {
 			if ( s instanceof ClassSymbol ) {
-				String obj = ((STClass) s).serialize().toString();
-				Files.write(Paths.get(dir, s.getName()+".sto"), obj.getBytes());
+				writeObjectFile(dir, (STClass) s);
 			}
 		}
 	}
 
+	public static void writeObjectFiles(String dir, STSymbolTable symtab, BuildManifest manifest, CompileCache cache)
+		throws IOException
+	{
+		writeObjectFiles(dir, symtab, manifest, cache, ObjectFormat.JSON);
+	}
+
+	/** Write .sto files for all classes or, if manifest is non-null, only for
+	 *  classes it says are stale. If cache has the object file for a class,
+	 *  write that instead of serializing the class. The cache and manifest
+	 *  must be for the same format.
+	 */
+	public static void writeObjectFiles(String dir, STSymbolTable symtab, BuildManifest manifest, CompileCache cache,
+	                                    ObjectFormat format)
+		throws IOException
+	{
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( !(s instanceof ClassSymbol) || (manifest!=null && !manifest.isStale(s.getName())) ) continue;
+			byte[] obj = cache!=null ? cache.getObjectFile(s.getName()) : null;
+			if ( obj!=null ) {
+				Files.write(Paths.get(dir, s.getName()+".sto"), obj);
+			}
+			else {
+				writeObjectFile(dir, (STClass) s, format);
+			}
+		}
+	}
+
+	public static void writeObjectFile(String dir, STClass cl) throws IOException {
+		writeObjectFile(dir, cl, ObjectFormat.JSON);
+	}
+
+	/** Stream the object file for cl to disk rather than building it in memory */
+	public static void writeObjectFile(String dir, STClass cl, ObjectFormat format) throws IOException {
+		Path path = Paths.get(dir, cl.getName()+".sto");
+		format.write(cl, new BufferedOutputStream(Files.newOutputStream(path)));
+	}
+
 	public static STSymbolTable compile(String fileName, boolean genDbg) {
 		STSymbolTable symtab = new STSymbolTable();
 		compile(symtab, fileName, genDbg);
@@ -98,19 +332,217 @@ public class STC {
 		}
 		c.genDbg = genDbg;
 
+		CharStream input = loadCharStream(fileName);
+		fileName = Paths.get(fileName).getFileName().toString();
+		symtab = c.compile(fileName, input);
+		// TODO: semantic checks for unknown vars/fields
+		if ( c.errors.size()>0 ) {
+			throw new RuntimeException("compile errors: "+c.errors.toString(),null);
+		}
+		return symtab;
+	}
+
+	/** Compile a group of files into symtab using nthreads workers.
+	 *  Each file gets its own {@link Compiler}. Files are parsed in parallel,
+	 *  then DefineSymbols runs serially over all trees, in file order, so that
+	 *  forward class references across files work. Symbol resolution and
+	 *  code generation then run in parallel again; that is safe because each
+	 *  class, and hence its string table and blocks, lives in exactly one file.
+	 */
+	public static STSymbolTable compile(STSymbolTable symtab, List<String> fileNames, boolean genDbg, int nthreads) {
+		return compile(symtab, fileNames, genDbg, nthreads, null, null);
+	}
+
+	/** Like {@link #compile(STSymbolTable, List, boolean, int)} but, if manifest
+	 *  is non-null, only resolve and generate code for classes the manifest
+	 *  says are stale. Up-to-date classes are still parsed and defined so that
+	 *  other classes can see their fields, but their methods get no compiled
+	 *  blocks. If cache is non-null, classes found in the cache also get no
+	 *  compiled blocks; their object files come from the cache instead.
+	 *  See {@link #writeObjectFiles(String, STSymbolTable, BuildManifest, CompileCache)}.
+	 */
+	public static STSymbolTable compile(STSymbolTable symtab, List<String> fileNames, boolean genDbg, int nthreads,
+	                                    BuildManifest manifest, CompileCache cache)
+	{
+		return compile(symtab, fileNames, options(genDbg, 0), nthreads, manifest, cache);
+	}
+
+	/** Like {@link #compile(STSymbolTable, List, boolean, int, BuildManifest, CompileCache)}
+	 *  but each file's compiler copies its options from options; see
+	 *  {@link Compiler#copyOptions}.
+	 */
+	public static STSymbolTable compile(STSymbolTable symtab, List<String> fileNames, Compiler options, int nthreads,
+	                                    BuildManifest manifest, CompileCache cache)
+	{
+		boolean genDbg = options.genDbg;
+		int n = fileNames.size();
+		List<Compiler> compilers = new ArrayList<>();
+		for (String fileName : fileNames) {
+			Compiler c = new Compiler(symtab);
+			c.copyOptions(options);
+			c.setFileName(Paths.get(fileName).getFileName().toString());
+			compilers.add(c);
+		}
+		ExecutorService pool = nthreads>1 ? Executors.newFixedThreadPool(nthreads) :
+		                                    MoreExecutors.newDirectExecutorService();
+		try {
+			List<ParserRuleContext> trees = runAll(pool, n, i -> () -> {
+				return compilers.get(i).parseClasses(loadCharStream(fileNames.get(i)));
+			});
+			for (int i = 0; i < n; i++) {
+				if ( trees.get(i)==null ) {
+					compilers.get(i).error("syntax errors in "+fileNames.get(i));
+				}
+				else {
+					compilers.get(i).defSymbols(trees.get(i));
+				}
+			}
+			if ( manifest!=null ) {
+				for (int i = 0; i < n; i++) {
+					SmalltalkParser.FileContext tree = (SmalltalkParser.FileContext)trees.get(i);
+					if ( tree==null ) continue;
+					String fileName = compilers.get(i).getFileName();
+					tree.classDef().forEach(classDef -> manifest.fingerprint(fileName, classDef));
+					manifest.fingerprint(fileName, tree.main());
+				}
+				manifest.computeStaleClasses();
+			}
+			Map<String,String> cacheKeys = new HashMap<>();
+			if ( cache!=null ) {
+				Map<String,String> sources = new HashMap<>();
+				for (ParserRuleContext tree : trees) {
+					if ( tree==null ) continue;
+					for (ParserRuleContext classTree : getClassTrees((SmalltalkParser.FileContext)tree)) {
+						sources.put(getClassScope(classTree).getName(), BuildManifest.getText(classTree));
+					}
+				}
+				for (int i = 0; i < n; i++) {
+					if ( trees.get(i)==null ) continue;
+					for (ParserRuleContext classTree : getClassTrees((SmalltalkParser.FileContext)trees.get(i))) {
+						STClass cl = getClassScope(classTree);
+						String key = CompileCache.key(genDbg, options.getCodeGenOptions(),
+						                              compilers.get(i).getFileName(), cl, sources,
+						                              ConstantFolder.dependencies(options));
+						cacheKeys.put(cl.getName(), key);
+					}
+				}
+			}
+			runAll(pool, n, i -> () -> {
+				ParserRuleContext tree = trees.get(i);
+				Compiler c = compilers.get(i);
+				if ( tree==null || !c.errors.isEmpty() ) return tree;
+				if ( manifest==null && cache==null ) {
+					c.resolveSymbolsAndGenerateCode(tree);
+					return tree;
+				}
+				for (ParserRuleContext classTree : getClassTrees((SmalltalkParser.FileContext)tree)) {
+					String className = getClassScope(classTree).getName();
+					if ( manifest!=null && !manifest.isStale(className) ) continue;
+					c.resolveSymbols(classTree);
+					if ( manifest!=null ) {
+						manifest.recordGlobals(className, classTree);
+					}
+					if ( cache!=null && cache.restore(className, cacheKeys.get(className)) ) continue;
+					c.generateCode(classTree);
+					if ( cache!=null && c.errors.isEmpty() ) {
+						cache.put(cacheKeys.get(className), getClassScope(classTree));
+					}
+				}
+				return tree;
+			});
+		}
+		finally {
+			pool.shutdown();
+		}
+		List<String> errors = new ArrayList<>();
+		for (Compiler c : compilers) {
+			errors.addAll(c.errors);
+		}
+		if ( errors.size()>0 ) {
+			throw new RuntimeException("compile errors: "+errors.toString(),null);
+		}
+		return symtab;
+	}
+
+	/** Return the class definitions in a file, including MainClass if there is a main program */
+	public static List<ParserRuleContext> getClassTrees(SmalltalkParser.FileContext tree) {
+		List<ParserRuleContext> classTrees = new ArrayList<>();
+		for (SmalltalkParser.ClassDefContext classDef : tree.classDef()) {
+			if ( classDef.scope!=null ) {
+				classTrees.add(classDef);
+			}
+		}
+		if ( tree.main().classScope!=null ) {
+			classTrees.add(tree.main());
+		}
+		return classTrees;
+	}
+
+	public static STClass getClassScope(ParserRuleContext classTree) {
+		if ( classTree instanceof SmalltalkParser.ClassDefContext ) {
+			return ((SmalltalkParser.ClassDefContext) classTree).scope;
+		}
+		return ((SmalltalkParser.MainContext) classTree).classScope;
+	}
+
+	/** Run task i for i in 0..n-1 on pool and return results in order */
+	private static <T> List<T> runAll(ExecutorService pool, int n, IntFunction<Callable<T>> task) {
+		List<Future<T>> futures = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			futures.add(pool.submit(task.apply(i)));
+		}
+		List<T> results = new ArrayList<>();
+		try {
+			for (Future<T> f : futures) {
+				results.add(f.get());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while compiling", e);
+		}
+		catch (ExecutionException e) {
+			if ( e.getCause() instanceof RuntimeException ) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+
+	public static String loadFile(String fileName) {
 		URL imageURL = getFileURL(fileName);
 		try {
-			fileName = Paths.get(fileName).getFileName().toString();
-			symtab = c.compile(fileName, new String(Utils.readFile(imageURL.getFile())));
-			// TODO: semantic checks for unknown vars/fields
+			return new String(Utils.readFile(imageURL.getFile()));
 		}
 		catch (IOException e ) {
 			throw new RuntimeException("can't load "+imageURL, e);
 		}
-		if ( c.errors.size()>0 ) {
-			throw new RuntimeException("compile errors: "+c.errors.toString(),null);
+	}
+
+	/** Load a UTF-8 source file as a code-point stream for the lexer.
+	 *  Files are decoded through a small window straight into the stream's
+	 *  code-point buffer, which stores one byte per character for ASCII
+	 *  source. We never hold the whole file as a byte[], char[] or String.
+	 *  Resources inside a jar are streamed instead.
+	 */
+	public static CharStream loadCharStream(String fileName) {
+		URL url = getFileURL(fileName);
+		try {
+			if ( !url.getProtocol().equals("file") ) {
+				try ( InputStream in = url.openStream() ) {
+					return CharStreams.fromStream(in, StandardCharsets.UTF_8);
+				}
+			}
+			Path path = Paths.get(url.toURI());
+			try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ) ) {
+				return CharStreams.fromChannel(channel, StandardCharsets.UTF_8, DECODE_WINDOW_SIZE,
+				                               CodingErrorAction.REPLACE, path.toString(), channel.size());
+			}
+		}
+		catch (IOException | URISyntaxException e) {
+			throw new RuntimeException("can't load "+url, e);
 		}
-		return symtab;
 	}
 
 	public static URL getFileURL(String fileName) {
@@ -0,0 +1,228 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** A resident compiler that accepts STC command lines over a loopback
+ *  socket so that each compile avoids JVM startup, class loading, and
+ *  deserializing the parser ATN. ANTLR shares the DFA among all
+ *  SmalltalkLexer/SmalltalkParser instances in a JVM so once we've
+ *  parsed something, every request benefits from a warm prediction cache.
+ *
+ *  The daemon reads and writes files as its own user wherever a request
+ *  says, so it only serves clients that can read its token file,
+ *  ~/.stc/daemon-port.token by default, which only the daemon's user
+ *  can read. Other local users can connect but get no further.
+ *
+ *  The protocol is line-based so a thin client can be a shell one-liner:
+ *
+ *  (cat ~/.stc/daemon-7070.token; printf '%s\n' "$PWD" file.st -o out '') | nc localhost 7070
+ *
+ *  A request is the token, the client's working directory, then one STC
+ *  argument per line, then an empty line. The response is whatever STC
+ *  prints, including syntax errors, followed by a final line "exit n"
+ *  with the exit code.
+ */
+public class STCDaemon {
+	/** Port to listen on; 0 picks a free one, see {@link #start()} */
+	public final int port;
+	public final Path tokenFile;
+
+	protected final ExecutorService workers = Executors.newCachedThreadPool();
+	protected ServerSocket server;
+	protected String token;
+
+	public STCDaemon(int port) {
+		this(port, null);
+	}
+
+	/** Write the token to tokenFile or, if null, to {@link #defaultTokenFile} for the port */
+	public STCDaemon(int port, Path tokenFile) {
+		this.port = port;
+		this.tokenFile = tokenFile;
+	}
+
+	public static Path defaultTokenFile(int port) {
+		return Paths.get(System.getProperty("user.home"), ".stc", "daemon-"+port+".token");
+	}
+
+	/** Listen, write a new token and warm up; return the port. Throws if
+	 *  the port is taken. Clients that connect while we warm up wait in
+	 *  the accept queue rather than being refused.
+	 */
+	public synchronized int start() throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			token = newToken();
+			writeToken(getTokenFile(), token);
+		}
+		catch (IOException ioe) {
+			server.close();
+			throw ioe;
+		}
+		warmUp();
+		return server.getLocalPort();
+	}
+
+	public Path getTokenFile() {
+		return tokenFile!=null ? tokenFile : defaultTokenFile(server.getLocalPort());
+	}
+
+	/** Handle requests until {@link #close()}; calls {@link #start()} if need be */
+	public void serve() throws IOException {
+		if ( server==null ) {
+			start();
+		}
+		System.err.println("stc daemon listening on "+server.getLocalSocketAddress());
+		try {
+			while ( true ) {
+				Socket client = server.accept();
+				workers.submit(() -> handle(client));
+			}
+		}
+		catch (SocketException closed) {
+			if ( !server.isClosed() ) throw closed;
+		}
+		finally {
+			close();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		workers.shutdown();
+		if ( server!=null && !server.isClosed() ) {
+			server.close();
+			Files.deleteIfExists(getTokenFile());
+		}
+	}
+
+	/** Load classes and fill the parser's DFA cache by parsing the image */
+	protected void warmUp() {
+		try {
+			Compiler c = new Compiler();
+			c.parseClasses(STC.loadCharStream("image.st"));
+			new Compiler(new STSymbolTable()).compile("warmup.st", "class T [ |x| foo: y [ ^x + y ] ] T new foo: 1.");
+		}
+		catch (IllegalArgumentException iae) {
+			// image.st not on CLASSPATH; first request warms things up
+		}
+	}
+
+	protected void handle(Socket socket) {
+		try ( Socket s = socket;
+		      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		      PrintStream out = new PrintStream(s.getOutputStream(), false, "UTF-8") )
+		{
+			String clientToken = in.readLine();
+			if ( clientToken==null ||
+				 !MessageDigest.isEqual(clientToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8)) )
+			{
+				out.println("stc daemon: bad token");
+				out.println("exit 1");
+				return;
+			}
+			String cwd = in.readLine();
+			List<String> args = new ArrayList<>();
+			String line;
+			while ( (line = in.readLine())!=null && !line.isEmpty() ) {
+				args.add(line);
+			}
+			if ( cwd==null || line==null ) {
+				out.println("stc daemon: incomplete request");
+				out.println("exit 1");
+				return;
+			}
+			int rc;
+			try {
+				rc = STC.run(Paths.get(cwd), args.toArray(new String[0]), out, out);
+			}
+			catch (Throwable t) { // e.g., StackOverflowError on deep nesting; the client still needs an exit code
+				out.println(t.getMessage()!=null ? t.getMessage() : t.toString());
+				rc = 1;
+			}
+			out.println("exit "+rc);
+		}
+		catch (IOException ioe) {
+			System.err.println("stc daemon: "+ioe);
+		}
+	}
+
+	protected static String newToken() {
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder buf = new StringBuilder();
+		for (byte b : bytes) {
+			buf.append(String.format("%02x", b));
+		}
+		return buf.toString();
+	}
+
+	/** Write token to a new file that only this user can read */
+	protected static void writeToken(Path file, String token) throws IOException {
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Files.deleteIfExists(file);
+		try {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch (UnsupportedOperationException notPosix) {
+			Files.createFile(file);
+			file.toFile().setReadable(false, false);
+			file.toFile().setReadable(true, true);
+		}
+		Files.write(file, token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Send STC args to the daemon on port, copy its output to out, and return its exit code */
+	public static int request(int port, Path cwd, String[] args, PrintStream out) throws IOException {
+		return request(port, defaultTokenFile(port), cwd, args, out);
+	}
+
+	/** Like {@link #request(int, Path, String[], PrintStream)} with the token in tokenFile */
+	public static int request(int port, Path tokenFile, Path cwd, String[] args, PrintStream out) throws IOException {
+		String token = new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8).trim();
+		try ( Socket s = new Socket(InetAddress.getLoopbackAddress(), port) ) {
+			Writer w = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+			w.write(token+"\n");
+			w.write(cwd+"\n");
+			for (String arg : args) {
+				w.write(arg+"\n");
+			}
+			w.write("\n");
+			w.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			String last = null;
+			String line;
+			while ( (line = in.readLine())!=null ) {
+				if ( last!=null ) out.println(last);
+				last = line;
+			}
+			if ( last==null || !last.startsWith("exit ") ) {
+				if ( last!=null ) out.println(last);
+				out.println("stc daemon closed connection");
+				return 1;
+			}
+			return Integer.parseInt(last.substring("exit ".length()));
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.MethodSymbol;
+import org.antlr.symtab.Symbol;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/** Fuse the opcode sequences that save the most dispatches across an image
+ *  into superinstructions: count them with {@link OpcodeStats}, define
+ *  the top n in a new {@link InstructionSet}, then rewrite every compiled
+ *  method and block with a {@link PeepholeOptimizer} rule that replaces
+ *  each occurrence, longest sequence first. The symbol table and the
+ *  classes with fused code keep the instruction set for writing and
+ *  disassembling. STC does this with -super n after compiling all files,
+ *  as the choice depends on the whole image.
+ *
+ *  A sequence qualifies if its instructions have at most
+ *  {@link Bytecode#MAX_OPNDS} operands altogether and none jumps.
+ */
+public class Superinstructions {
+	/** Define up to n superinstructions for symtab's code and use them;
+	 *  return the optimizer that rewrote the code, whose counters say what
+	 *  fusing saved. Code must not have superinstructions already.
+	 */
+	public static PeepholeOptimizer fuse(STSymbolTable symtab, int n) {
+		OpcodeStats stats = new OpcodeStats();
+		stats.add(symtab);
+		List<short[]> chosen = choose(stats, n);
+		PeepholeOptimizer fuser = new PeepholeOptimizer(new InstructionSet(chosen));
+		fuser.rules.clear();
+		fuser.addRule(rule(chosen));
+		rewrite(symtab, fuser);
+		return fuser;
+	}
+
+	/** Return the n fusable sequences that occur most, weighted by the dispatches each saves */
+	public static List<short[]> choose(OpcodeStats stats, int n) {
+		List<Map.Entry<List<Short>,Long>> candidates = new ArrayList<>();
+		for (Map.Entry<List<Short>,Long> e : stats.counts.entrySet()) {
+			if ( canFuse(e.getKey()) ) candidates.add(e);
+		}
+		candidates.sort(Comparator.<Map.Entry<List<Short>,Long>>comparingLong(e -> -e.getValue()*(e.getKey().size()-1))
+			                .thenComparing(e -> OpcodeStats.toString(e.getKey())));
+		List<short[]> chosen = new ArrayList<>();
+		for (Map.Entry<List<Short>,Long> e : candidates.subList(0, Math.min(n, candidates.size()))) {
+			short[] seq = new short[e.getKey().size()];
+			for (int i = 0; i < seq.length; i++) seq[i] = e.getKey().get(i);
+			chosen.add(seq);
+		}
+		return chosen;
+	}
+
+	protected static boolean canFuse(List<Short> seq) {
+		short[] ops = new short[seq.size()];
+		for (int i = 0; i < ops.length; i++) ops[i] = seq.get(i);
+		try {
+			Bytecode.fuse(ops);
+			return true;
+		}
+		catch (IllegalArgumentException tooManyOperands) {
+			return false;
+		}
+	}
+
+	/** A rule replacing sequences[k] with opcode FIRST_SUPERINSTRUCTION+k, trying longer sequences first */
+	public static PeepholeOptimizer.Rule rule(List<short[]> sequences) {
+		List<Integer> order = new ArrayList<>();
+		for (int k = 0; k < sequences.size(); k++) order.add(k);
+		order.sort(Comparator.comparingInt(k -> -sequences.get(k).length));
+		return (code, i) -> {
+			for (int k : order) {
+				short[] seq = sequences.get(k);
+				if ( matches(code, i, seq) ) {
+					List<Integer> operands = new ArrayList<>();
+					for (PeepholeOptimizer.Instr instr : code.subList(i, i+seq.length)) {
+						for (int v : instr.operands) operands.add(v);
+					}
+					int[] fusedOperands = operands.stream().mapToInt(Integer::intValue).toArray();
+					short opcode = (short)(Bytecode.FIRST_SUPERINSTRUCTION+k);
+					PeepholeOptimizer.replace(code, i, i+seq.length, new PeepholeOptimizer.Instr(opcode, fusedOperands));
+					return true;
+				}
+			}
+			return false;
+		};
+	}
+
+	protected static boolean matches(List<PeepholeOptimizer.Instr> code, int i, short[] seq) {
+		if ( i+seq.length>code.size() ) return false;
+		for (int j = 0; j < seq.length; j++) {
+			PeepholeOptimizer.Instr instr = code.get(i+j);
+			if ( instr.opcode!=seq[j] || (j>0 && instr.isJumpTarget()) ) return false;
+		}
+		return true;
+	}
+
+	/** Return bytecode that uses set with each superinstruction replaced by
+	 *  the instructions it fuses, for tools that don't know set.
+	 */
+	public static byte[] expand(byte[] bytecode, InstructionSet set) {
+		List<PeepholeOptimizer.Instr> code = PeepholeOptimizer.decode(bytecode, set);
+		for (int i = 0; i < code.size(); i++) {
+			short[] seq = set.superinstruction(code.get(i).opcode);
+			if ( seq==null ) continue;
+			int[] operands = code.get(i).operands;
+			List<PeepholeOptimizer.Instr> parts = new ArrayList<>();
+			int o = 0;
+			for (short op : seq) {
+				int n = PeepholeOptimizer.operandCount(Bytecode.instructions[op]);
+				parts.add(new PeepholeOptimizer.Instr(op, Arrays.copyOfRange(operands, o, o+n)));
+				o += n;
+			}
+			PeepholeOptimizer.replace(code, i, i+1, parts.get(0));
+			code.addAll(i+1, parts.subList(1, parts.size()));
+			i += parts.size()-1;
+		}
+		return PeepholeOptimizer.encode(code);
+	}
+
+	/** Rewrite symtab's code with fuser, whose instruction set symtab and
+	 *  each class that ends up with a superinstruction then use.
+	 */
+	public static void rewrite(STSymbolTable symtab, PeepholeOptimizer fuser) {
+		symtab.instructionSet = fuser.instructionSet;
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				boolean fused = false;
+				for (MethodSymbol m : ((STClass)s).getDefinedMethods()) {
+					fused |= rewrite(((STMethod)m).compiledBlock, fuser);
+				}
+				if ( fused ) ((STClass)s).instructionSet = fuser.instructionSet;
+			}
+		}
+	}
+
+	/** Return whether fuser changed blk or a nested block */
+	protected static boolean rewrite(STCompiledBlock blk, PeepholeOptimizer fuser) {
+		boolean fused = false;
+		if ( blk.bytecode!=null ) {
+			byte[] before = blk.bytecode;
+			blk.bytecode = fuser.optimize(before);
+			fused = blk.bytecode!=before;
+		}
+		if ( blk.blocks!=null ) {
+			for (STCompiledBlock nested : blk.blocks) fused |= rewrite(nested, fuser);
+		}
+		return fused;
+	}
+}
@@ -0,0 +1,53 @@
+package smalltalk.compiler.symbols;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The strings and symbols referenced by a class's compiled code in the
+ *  order they were first added. A literal's index never changes once it
+ *  is added; PUSH_LITERAL, PUSH_GLOBAL, SEND and DBG operands refer to it.
+ */
+public class LiteralPool {
+	protected final Map<String,Integer> indexes = new HashMap<>();
+	protected final List<String> literals = new ArrayList<>();
+
+	/** Return the index of s, adding it to the end of the pool if new */
+	public int add(String s) {
+		Integer i = indexes.get(s);
+		if ( i!=null ) return i;
+		int index = literals.size();
+		indexes.put(s, index);
+		literals.add(s);
+		return index;
+	}
+
+	/** Return the index of s or -1 if it is not in the pool */
+	public int indexOf(String s) {
+		Integer i = indexes.get(s);
+		return i!=null ? i : -1;
+	}
+
+	public String get(int i) {
+		return literals.get(i);
+	}
+
+	public int size() {
+		return literals.size();
+	}
+
+	public String[] toArray() {
+		return literals.toArray(new String[literals.size()]);
+	}
+
+	public List<String> toList() {
+		return Collections.unmodifiableList(literals);
+	}
+
+	@Override
+	public String toString() {
+		return literals.toString();
+	}
+}
@@ -3,8 +3,8 @@ package smalltalk.compiler.symbols;
 import org.antlr.symtab.MethodSymbol;
 import org.antlr.v4.runtime.ParserRuleContext;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A block is an anonymous method defined within a method or another block.
@@ -46,7 +46,10 @@ public class STBlock extends MethodSymbol {
 
     public STCompiledBlock compiledBlock;
 
-    private List<String> locals = new ArrayList<>();
+    /**
+     * Argument or local name -> slot, args first; slot is order added
+     */
+    private final Map<String, Integer> slots = new HashMap<>();
     private int nargs = 0;
     private int nlocals = 0;
 
@@ -87,10 +90,10 @@ public class STBlock extends MethodSymbol {
     }
 
     private void doAddLocal(String name) {
-        if (locals.contains(name)) {
+        if (slots.containsKey(name)) {
             throw new IllegalStateException("There is already an argument or local variable '" + name + "'");
         }
-        locals.add(name);
+        slots.put(name, slots.size());
     }
 
     public int nlocals() {
@@ -104,8 +107,8 @@ public class STBlock extends MethodSymbol {
      * has  indexes x@0, y@1, a@x.
      */
     public int getLocalIndex(String name) {
-        // fill in
-        return locals.indexOf(name);
+        Integer slot = slots.get(name);
+        return slot != null ? slot : -1;
     }
 
     public int getArgumentIndex(String name) {
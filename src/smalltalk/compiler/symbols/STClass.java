@@ -2,13 +2,23 @@ package smalltalk.compiler.symbols;
 
 import org.antlr.symtab.*;
 import org.stringtemplate.v4.ST;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.InstructionSet;
+import smalltalk.compiler.ObjectFile;
+import smalltalk.compiler.Superinstructions;
 
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a compile-time Smalltalk class in a Smalltalk program; it
@@ -19,27 +29,85 @@ public class STClass extends ClassSymbol {
      * The set of strings and symbols referenced by the {@link STCompiledBlock#bytecode} field
      * for all methods and blocks compiled for this class.  Each class has a
      * unique set of strings (which might have strings in common with another
-     * class's string table).
+     * class's string table). Adding or looking up a literal is O(1).
      */
-    public final StringTable stringTable = new StringTable();
+    public final LiteralPool stringTable = new LiteralPool();
+
+    /**
+     * The instructions the compiled code of this class uses, which object
+     * files and disassembly need; {@link Superinstructions#rewrite} sets it
+     * to its build's if it fused any of the class's code.
+     */
+    public InstructionSet instructionSet = InstructionSet.BASE;
+
+    /**
+     * Does any method or block of this class use a special send? Object
+     * files only carry {@link Bytecode#specialSelectors} if so. The code
+     * generator sets it as it finishes each block.
+     */
+    public boolean usesSpecialSends;
+
+    /**
+     * Field name -> offset within an instance, inherited fields first.
+     * Computed once on first use, which must be after all classes are
+     * defined so superclasses resolve; frozen after that.
+     */
+    private Map<String, Integer> fieldOffsets;
+
+    /**
+     * Number of fields in an instance including inherited fields
+     */
+    private int instanceSize;
 
     public STClass(String name, String superClassName) {
         super(name);
         setSuperClass(superClassName);
     }
 
+    /**
+     * Return the offset of field name within an instance of this class
+     * or -1 if there is no such field here or in a superclass.
+     */
     public int getFieldIndex(String name) {
-        int numInheritedFields = 0;
+        Integer offset = getFieldOffsets().get(name);
+        return offset != null ? offset : -1;
+    }
+
+    public int getInstanceSize() {
+        getFieldOffsets();
+        return instanceSize;
+    }
 
-        Symbol sym = resolve(name);
-        if (sym == null || !(sym.getScope() instanceof STClass)) return -1;
+    /**
+     * Compile threads share superclasses, so compute the layout under a lock.
+     */
+    public synchronized Map<String, Integer> getFieldOffsets() {
+        if (fieldOffsets == null) {
+            Map<String, Integer> offsets = new HashMap<>();
+            int size = 0;
+            ClassSymbol sup = getSuperClassScope();
+            if (sup instanceof STClass && !isSubclassOf(sup)) {
+                offsets.putAll(((STClass) sup).getFieldOffsets());
+                size = ((STClass) sup).getInstanceSize();
+            }
+            for (FieldSymbol f : getDefinedFields()) {
+                offsets.put(f.getName(), size++);
+            }
+            instanceSize = size;
+            fieldOffsets = Collections.unmodifiableMap(offsets);
+        }
+        return fieldOffsets;
+    }
 
-        if (sym.getScope() == this && getSuperClassScopes() != null) {
-            numInheritedFields = getSuperClassScopes().stream()
-                    .mapToInt(DataAggregateSymbol::getNumberOfDefinedFields)
-                    .sum();
+    /**
+     * True if this class appears in sup's superclass chain; a cycle.
+     */
+    private boolean isSubclassOf(ClassSymbol sup) {
+        Set<ClassSymbol> visited = new HashSet<>();
+        for (ClassSymbol c = sup; c != null && visited.add(c); c = c.getSuperClassScope()) {
+            if (c == this) return true;
         }
-        return sym.getInsertionOrderNumber() + numInheritedFields;
+        return false;
     }
 
     public STMethod resolveMethod(String name) {
@@ -58,6 +126,25 @@ public class STClass extends ClassSymbol {
      */
     public JsonObject serialize() {
         JsonObjectBuilder builder = Json.createObjectBuilder();
+        builder.add("version", ObjectFile.VERSION);
+        if (usesSpecialSends) {
+            JsonArrayBuilder specialArray = Json.createArrayBuilder();
+            for (String selector : Bytecode.specialSelectors) {
+                specialArray.add(selector);
+            }
+            builder.add("specialSelectors", specialArray);
+        }
+        if (!instructionSet.getSuperinstructions().isEmpty()) {
+            JsonArrayBuilder superArray = Json.createArrayBuilder();
+            for (short[] seq : instructionSet.getSuperinstructions()) {
+                JsonArrayBuilder opcodes = Json.createArrayBuilder();
+                for (short op : seq) {
+                    opcodes.add(op);
+                }
+                superArray.add(opcodes);
+            }
+            builder.add("superinstructions", superArray);
+        }
         builder.add("name", name);
         if (superClassName != null) {
             builder.add("superClassName", superClassName);
@@ -74,6 +161,7 @@ public class STClass extends ClassSymbol {
             fieldArray.add(f.getName());
         }
         builder.add("fields", fieldArray);
+        builder.add("instanceSize", getInstanceSize());
         JsonArrayBuilder methodArray = Json.createArrayBuilder();
         for (MethodSymbol m : getDefinedMethods()) {
             methodArray.add(((STMethod) m).compiledBlock.serialize());
@@ -82,6 +170,54 @@ public class STClass extends ClassSymbol {
         return builder.build();
     }
 
+    /**
+     * Write the same JSON as {@link #serialize()} to gen without building
+     * a tree of JSON values first.
+     */
+    public void serialize(JsonGenerator gen) {
+        gen.writeStartObject();
+        gen.write("version", ObjectFile.VERSION);
+        if (usesSpecialSends) {
+            gen.writeStartArray("specialSelectors");
+            for (String selector : Bytecode.specialSelectors) {
+                gen.write(selector);
+            }
+            gen.writeEnd();
+        }
+        if (!instructionSet.getSuperinstructions().isEmpty()) {
+            gen.writeStartArray("superinstructions");
+            for (short[] seq : instructionSet.getSuperinstructions()) {
+                gen.writeStartArray();
+                for (short op : seq) {
+                    gen.write(op);
+                }
+                gen.writeEnd();
+            }
+            gen.writeEnd();
+        }
+        gen.write("name", name);
+        if (superClassName != null) {
+            gen.write("superClassName", superClassName);
+        }
+        gen.writeStartArray("literals");
+        for (String literal : stringTable.toList()) {
+            gen.write(literal);
+        }
+        gen.writeEnd();
+        gen.writeStartArray("fields");
+        for (FieldSymbol f : getDefinedFields()) {
+            gen.write(f.getName());
+        }
+        gen.writeEnd();
+        gen.write("instanceSize", getInstanceSize());
+        gen.writeStartArray("methods");
+        for (MethodSymbol m : getDefinedMethods()) {
+            ((STMethod) m).compiledBlock.serialize(gen);
+        }
+        gen.writeEnd();
+        gen.writeEnd();
+    }
+
     public String toTestString() {
         return getAsString();
     }
@@ -97,7 +233,7 @@ public class STClass extends ClassSymbol {
         );
         template.impl.nativeGroup.setListener(STCompiledBlock.templateErrorListener);
         template.add("name", name);
-        if (!superClassName.equals("Object")) {
+        if (superClassName != null && !superClassName.equals("Object")) {
             template.add("superClassName", superClassName);
         } else {
             template.add("superClassName", null);
@@ -10,6 +10,7 @@ import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
 
 /** This object represents the compiled code for a block or method and is
  *  more or less equivalent to the class with same name in VM.
@@ -31,6 +32,9 @@ import javax.json.JsonObjectBuilder;
  *  During VM execution, they are stored in STMetaClassObject's literals field.
  */
 public class STCompiledBlock {
+	/** What a block needs from its context when created; see {@link smalltalk.compiler.BlockClassifier} */
+	public enum ClosureKind { CLEAN, COPYING, FULL }
+
 	// Used to trap stringtemplate errors (e.g., can set breakpoint in these methods).
 	public static final ErrorBuffer templateErrorListener = new ErrorBuffer() {
 		@Override
@@ -68,6 +72,7 @@ public class STCompiledBlock {
 	private boolean nlocalsChanged;
 	private int nargs;
 	private boolean nargsChanged;
+	private int ncacheSlots;
 
     private final STBlock blk;
 
@@ -91,6 +96,9 @@ public class STCompiledBlock {
 	/** True if method was defined as a class method in Smalltalk code */
 	public final boolean isClassMethod;
 
+	/** Set for [...] blocks once their method is compiled; null for methods */
+	public ClosureKind closureKind;
+
 	public STCompiledBlock(STClass enclosingClass, STBlock blk) {
 	    this.blk = blk;
 		this.enclosingClass = enclosingClass;
@@ -121,6 +129,10 @@ public class STCompiledBlock {
 		}
 		builder.add("nargs", nargs());
 		builder.add("nlocals", nlocals());
+		builder.add("ncacheSlots", ncacheSlots());
+		if ( closureKind!=null ) {
+			builder.add("closure", closureKind.name().toLowerCase());
+		}
 		JsonArrayBuilder codeArray = Json.createArrayBuilder();
 		if ( bytecode!=null ) {
 			for (byte b : bytecode) {
@@ -138,6 +150,38 @@ public class STCompiledBlock {
 		return builder.build();
 	}
 
+	/** Stream the same JSON as {@link #serialize()} to gen */
+	public void serialize(JsonGenerator gen) {
+		gen.writeStartObject();
+		gen.write("name", name);
+		gen.write("isClassMethod", isClassMethod);
+		gen.write("qualifiedName", qualifiedName);
+		if ( primitiveName!=null ) {
+			gen.write("primitiveName", primitiveName);
+		}
+		gen.write("nargs", nargs());
+		gen.write("nlocals", nlocals());
+		gen.write("ncacheSlots", ncacheSlots());
+		if ( closureKind!=null ) {
+			gen.write("closure", closureKind.name().toLowerCase());
+		}
+		gen.writeStartArray("bytecode");
+		if ( bytecode!=null ) {
+			for (byte b : bytecode) {
+				gen.write(b);
+			}
+		}
+		gen.writeEnd();
+		gen.writeStartArray("blocks");
+		if ( blocks!=null ) {
+			for (STCompiledBlock block : blocks) {
+				block.serialize(gen);
+			}
+		}
+		gen.writeEnd();
+		gen.writeEnd();
+	}
+
 	public void setNargs(int nargs) {
 	    this.nargs = nargs;
 	    nargsChanged = true;
@@ -148,16 +192,29 @@ public class STCompiledBlock {
 	    nlocalsChanged = true;
     }
 
-    private int nargs() {
+    public int nargs() {
 	    if (nargsChanged) return nargs;
         return blk.nargs();
     }
 
-    private int nlocals() {
+    public int nlocals() {
 	    if (nlocalsChanged) return nlocals;
         return blk.nlocals();
     }
 
+    /** Set once code generation is done; fusing superinstructions keeps every site */
+    public void setNcacheSlots(int ncacheSlots) {
+        this.ncacheSlots = ncacheSlots;
+    }
+
+    /** How many inline caches a VM needs for this block: one per send
+     *  site, numbered in bytecode order by {@link Bytecode#sendSites}.
+     *  Nested blocks have their own.
+     */
+    public int ncacheSlots() {
+        return ncacheSlots;
+    }
+
     public String getAsString() {
 		ST template = new ST(testStringTemplate);
 		template.impl.nativeGroup.setListener(templateErrorListener);
@@ -167,7 +224,8 @@ public class STCompiledBlock {
 		template.add("nargs", nargs());
 		template.add("nlocals", nlocals());
 		template.add("bytecode", bytecode);
-		template.add("assembly", Bytecode.disassemble(this.name, this.bytecode, enclosingClass.stringTable.toArray(), 0));
+		template.add("assembly", Bytecode.disassemble(this.name, this.bytecode, enclosingClass.stringTable.toArray(), 0,
+		                                              enclosingClass.instructionSet));
 		template.add("nblocks", blocks!=null ? blocks.length : 0);
         template.add("blocks", Utils.map(blocks, STCompiledBlock::toTestString));
         return template.render();
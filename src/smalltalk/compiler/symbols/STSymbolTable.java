@@ -1,10 +1,14 @@
 package smalltalk.compiler.symbols;
 
 import org.antlr.symtab.GlobalScope;
+import smalltalk.compiler.InstructionSet;
 
 public class STSymbolTable {
 	public final GlobalScope GLOBALS;
 
+	/** What this build's code uses; {@link smalltalk.compiler.Superinstructions} changes it */
+	public InstructionSet instructionSet = InstructionSet.BASE;
+
 	public STSymbolTable() {
 		this.GLOBALS = new GlobalScope(null);
 	}
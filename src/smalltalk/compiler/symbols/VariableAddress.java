@@ -0,0 +1,50 @@
+package smalltalk.compiler.symbols;
+
+/** Where a variable reference lives at run time, computed once during
+ *  symbol resolution so code generation need not walk scopes:
+ *
+ *  local(depth, slot): slot in the context depth blocks out from the
+ *  current block/method; PUSH_LOCAL/STORE_LOCAL.
+ *
+ *  field(offset): offset within self; PUSH_FIELD/STORE_FIELD.
+ *
+ *  global(name): anything else, such as a class name; PUSH_GLOBAL of the
+ *  name's literal. The code generator adds name to the literal pool when
+ *  it emits the reference, so pool order follows emission order.
+ */
+public class VariableAddress {
+	public enum Kind { LOCAL, FIELD, GLOBAL }
+
+	public final Kind kind;
+	public final int depth;
+	public final int index;
+	public final String name;
+
+	protected VariableAddress(Kind kind, int depth, int index, String name) {
+		this.kind = kind;
+		this.depth = depth;
+		this.index = index;
+		this.name = name;
+	}
+
+	public static VariableAddress local(int depth, int slot) {
+		return new VariableAddress(Kind.LOCAL, depth, slot, null);
+	}
+
+	public static VariableAddress field(int offset) {
+		return new VariableAddress(Kind.FIELD, 0, offset, null);
+	}
+
+	public static VariableAddress global(String name) {
+		return new VariableAddress(Kind.GLOBAL, 0, -1, name);
+	}
+
+	@Override
+	public String toString() {
+		switch ( kind ) {
+			case LOCAL : return "local("+depth+", "+index+")";
+			case FIELD : return "field("+index+")";
+			default :    return "global("+name+")";
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package smalltalk.compiler.bench;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.ParserRuleContext;
+import smalltalk.compiler.Compiler;
+
+import java.lang.management.ManagementFactory;
+
+/** Measure time and bytes allocated by the CodeGenerator walk alone on
+ *  image.st scaled up and on methods with long binary expression chains and
+ *  deeply nested keyword sends, where joining Code objects per subtree
+ *  recopied every nested expression into each enclosing one.
+ *
+ *  $ java smalltalk.compiler.bench.CodeGenBenchmark [copies] [depth]
+ */
+public class CodeGenBenchmark {
+	public static void main(String[] args) {
+		int copies = args.length>0 ? Integer.parseInt(args[0]) : 100;
+		int depth = args.length>1 ? Integer.parseInt(args[1]) : 2000;
+		run("image.st x "+copies, CompilePassesBenchmark.scaledImage(copies));
+		run("binary chain x "+depth, binaryChain(depth));
+		run("nested sends x "+depth/10, nestedSends(depth/10));
+	}
+
+	static void run(String name, String input) {
+		for (int i = 0; i < 5; i++) measure(input); // warm up
+		int n = 10;
+		long time = 0, bytes = 0;
+		for (int i = 0; i < n; i++) {
+			long[] r = measure(input);
+			time += r[0];
+			bytes += r[1];
+		}
+		System.out.printf("%-22s codegen %7.2f ms, %8.1f KB allocated%n",
+		                  name, time/1e6/n, bytes/1024.0/n);
+	}
+
+	/** Return {nanoseconds, bytes allocated} for code generation only */
+	static long[] measure(String input) {
+		Compiler c = new Compiler();
+		ParserRuleContext tree = c.parseClasses(CharStreams.fromString(input));
+		c.defSymbols(tree);
+		c.resolveSymbols(tree);
+		com.sun.management.ThreadMXBean mx =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		long bytes = mx.getThreadAllocatedBytes(tid);
+		long start = System.nanoTime();
+		c.generateCode(tree);
+		long t = System.nanoTime() - start;
+		bytes = mx.getThreadAllocatedBytes(tid) - bytes;
+		if ( !c.errors.isEmpty() ) throw new IllegalStateException(c.errors.toString());
+		return new long[] {t, bytes};
+	}
+
+	/** class T [ f [ ^1 + 1 + 1 ... ] ] */
+	static String binaryChain(int n) {
+		StringBuilder buf = new StringBuilder("class T [\n f [ ^1");
+		for (int i = 0; i < n; i++) buf.append(" + 1");
+		return buf.append(" ]\n]\n").toString();
+	}
+
+	/** class T [ f [ ^((self at: 1) at: 1) ... ] ] */
+	static String nestedSends(int n) {
+		StringBuilder buf = new StringBuilder("class T [\n f [ ^");
+		for (int i = 0; i < n; i++) buf.append('(');
+		buf.append("self");
+		for (int i = 0; i < n; i++) buf.append(" at: 1)");
+		return buf.append(" ]\n]\n").toString();
+	}
+}
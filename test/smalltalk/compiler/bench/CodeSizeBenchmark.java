@@ -0,0 +1,59 @@
+package smalltalk.compiler.bench;
+
+import org.antlr.symtab.MethodSymbol;
+import org.antlr.symtab.Symbol;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.compiler.test.BaseTest;
+
+/** Report total bytecode size of the CodeGen samples and of image.st
+ *  without and with the one-byte short forms of
+ *  {@link Compiler#shortForms}, such as push_local_0 and push_int_1.
+ *
+ *  $ java smalltalk.compiler.bench.CodeSizeBenchmark
+ */
+public class CodeSizeBenchmark {
+	public static void main(String[] args) {
+		long plain = 0, shortForms = 0;
+		for (Object[] test : BaseTest.getAllTestDescriptors("CodeGen")) {
+			plain += codeSize((String)test[1], false);
+			shortForms += codeSize((String)test[1], true);
+		}
+		report("CodeGen samples", plain, shortForms);
+		String image = STC.loadFile("image.st");
+		report("image.st", codeSize(image, false), codeSize(image, true));
+	}
+
+	static void report(String name, long plain, long shortForms) {
+		System.out.printf("%-16s %6d bytes, %6d with short forms (%.1f%% smaller)%n",
+		                  name, plain, shortForms, 100.0*(plain-shortForms)/plain);
+	}
+
+	/** Return bytes of bytecode in all methods and blocks compiled from input */
+	static long codeSize(String input, boolean shortForms) {
+		Compiler c = new Compiler();
+		c.shortForms = shortForms;
+		STSymbolTable symtab = c.compile("t.st", input);
+		long n = 0;
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				for (MethodSymbol m : ((STClass)s).getDefinedMethods()) {
+					n += codeSize(((STMethod)m).compiledBlock);
+				}
+			}
+		}
+		return n;
+	}
+
+	static long codeSize(STCompiledBlock blk) {
+		long n = blk.bytecode!=null ? blk.bytecode.length : 0;
+		if ( blk.blocks!=null ) {
+			for (STCompiledBlock nested : blk.blocks) n += codeSize(nested);
+		}
+		return n;
+	}
+}
@@ -0,0 +1,64 @@
+package smalltalk.compiler.bench;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.ParserRuleContext;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Time symbol resolution plus code generation on image.st scaled up by
+ *  renaming its classes n times, as separate ResolveSymbols and
+ *  CodeGenerator walks versus the fused ResolvingCodeGenerator walk.
+ *
+ *  $ java smalltalk.compiler.bench.CompilePassesBenchmark [copies]
+ */
+public class CompilePassesBenchmark {
+	public static void main(String[] args) {
+		int copies = args.length>0 ? Integer.parseInt(args[0]) : 200;
+		String image = scaledImage(copies);
+		System.out.printf("image.st x %d = %d lines%n", copies, image.split("\n").length);
+		for (int i = 0; i < 5; i++) { // warm up
+			time(image, false);
+			time(image, true);
+		}
+		int n = 10;
+		long separate = 0, fused = 0;
+		for (int i = 0; i < n; i++) {
+			separate += time(image, false);
+			fused += time(image, true);
+		}
+		System.out.printf("resolve+codegen: separate walks %.1f ms, fused walk %.1f ms, saved %.1f%%%n",
+		                  separate/1e6/n, fused/1e6/n, 100.0*(separate-fused)/separate);
+	}
+
+	/** Return nanoseconds to run passes after DefineSymbols */
+	static long time(String input, boolean fusePasses) {
+		Compiler c = new Compiler();
+		c.fusePasses = fusePasses;
+		ParserRuleContext tree = c.parseClasses(CharStreams.fromString(input));
+		c.defSymbols(tree);
+		long start = System.nanoTime();
+		c.resolveSymbolsAndGenerateCode(tree);
+		long t = System.nanoTime() - start;
+		if ( !c.errors.isEmpty() ) throw new IllegalStateException(c.errors.toString());
+		return t;
+	}
+
+	/** image.st concatenated copies times, each with classes renamed Foo -> Foo1, Foo2, ... */
+	public static String scaledImage(int copies) {
+		String image = STC.loadFile("image.st");
+		List<String> classNames = new ArrayList<>();
+		Matcher m = Pattern.compile("class\\s+([A-Z]\\w*)").matcher(image);
+		while ( m.find() ) classNames.add(m.group(1));
+		Pattern names = Pattern.compile("\\b("+String.join("|", classNames)+")\\b");
+		StringBuilder buf = new StringBuilder();
+		for (int i = 1; i <= copies; i++) {
+			buf.append(names.matcher(image).replaceAll("$1"+i)).append('\n');
+		}
+		return buf.toString();
+	}
+}
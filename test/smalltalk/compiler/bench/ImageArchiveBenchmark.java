@@ -0,0 +1,74 @@
+package smalltalk.compiler.bench;
+
+import org.antlr.symtab.Symbol;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.ImageArchive;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Time loading image.st scaled up by renaming its classes n times from
+ *  one binary .sto file per class versus from an {@link ImageArchive},
+ *  decoding every class or just a handful.
+ *
+ *  $ java smalltalk.compiler.bench.ImageArchiveBenchmark [copies]
+ */
+public class ImageArchiveBenchmark {
+	public static void main(String[] args) throws IOException {
+		int copies = args.length>0 ? Integer.parseInt(args[0]) : 20;
+		STSymbolTable symtab = new Compiler().compile("image.st", CompilePassesBenchmark.scaledImage(copies));
+		Path dir = Files.createTempDirectory("stc-archive-bench");
+		List<String> names = new ArrayList<>();
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				STC.writeObjectFile(dir.toString(), (STClass) s, ObjectFormat.BINARY);
+				names.add(s.getName());
+			}
+		}
+		Path archive = dir.resolve("image.sti");
+		ImageArchive.write(archive, symtab, ObjectFormat.BINARY);
+		List<String> few = names.subList(0, 5);
+		System.out.printf("image.st x %d = %d classes%n", copies, names.size());
+		for (int i = 0; i < 20; i++) { // warm up
+			loadFiles(dir, names);
+			loadArchive(archive, names);
+		}
+		int n = 20;
+		System.out.printf("all classes: .sto files %6.2f ms, archive %6.2f ms%n",
+		                  time(n, () -> loadFiles(dir, names)), time(n, () -> loadArchive(archive, names)));
+		System.out.printf("5 classes:   .sto files %6.2f ms, archive %6.2f ms%n",
+		                  time(n, () -> loadFiles(dir, few)), time(n, () -> loadArchive(archive, few)));
+		System.out.printf("open archive and read index: %6.2f ms%n", time(n, () -> ImageArchive.open(archive)));
+		for (String name : names) Files.delete(dir.resolve(name+".sto"));
+		Files.delete(archive);
+		Files.delete(dir);
+	}
+
+	interface Load { void run() throws IOException; }
+
+	static double time(int n, Load load) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) load.run();
+		return (System.nanoTime() - start)/1e6/n;
+	}
+
+	static void loadFiles(Path dir, List<String> names) throws IOException {
+		for (String name : names) {
+			ObjectFormat.load(Files.readAllBytes(dir.resolve(name+".sto")));
+		}
+	}
+
+	static void loadArchive(Path file, List<String> names) throws IOException {
+		ImageArchive archive = ImageArchive.open(file);
+		for (String name : names) {
+			archive.load(name);
+		}
+	}
+}
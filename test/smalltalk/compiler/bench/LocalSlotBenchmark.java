@@ -0,0 +1,73 @@
+package smalltalk.compiler.bench;
+
+import smalltalk.compiler.symbols.STMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Time defining n args and temps with STBlock.addArgument and
+ *  addLocalVariable, which the code generator calls for every frame,
+ *  next to the List.contains duplicate check they replaced. Each add
+ *  should cost the same at every size.
+ *
+ *  $ java smalltalk.compiler.bench.LocalSlotBenchmark
+ */
+public class LocalSlotBenchmark {
+	static final int ADDS = 2_000_000;
+
+	public static void main(String[] args) {
+		int[] sizes = {4, 16, 64, 256, 1024};
+		for (int i = 0; i < 3; i++) { // warm up
+			for (int n : sizes) {
+				timeSlotMap(n);
+				timeList(n);
+			}
+		}
+		System.out.printf("%6s %14s %14s%n", "vars", "slot map", "List.contains");
+		for (int n : sizes) {
+			System.out.printf("%6d %11.1f ns %11.1f ns%n", n, timeSlotMap(n), timeList(n));
+		}
+	}
+
+	/** Return ns per add defining frames with n/4 args and the rest temps */
+	static double timeSlotMap(int n) {
+		String[] names = names(n);
+		int sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < ADDS / n; i++) {
+			STMethod m = new STMethod("m", null);
+			for (int j = 0; j < n; j++) {
+				if ( j < n/4 ) m.addArgument(names[j]);
+				else m.addLocalVariable(names[j]);
+			}
+			sum += m.nlocals();
+		}
+		long t = System.nanoTime() - start;
+		if ( sum<0 ) throw new IllegalStateException(); // keep JIT from dropping the loop
+		return (double)t/(ADDS / n * n);
+	}
+
+	static double timeList(int n) {
+		String[] names = names(n);
+		int sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < ADDS / n; i++) {
+			List<String> locals = new ArrayList<>();
+			for (int j = 0; j < n; j++) {
+				if ( locals.contains(names[j]) ) throw new IllegalStateException(names[j]);
+				locals.add(names[j]);
+			}
+			sum += locals.size();
+		}
+		long t = System.nanoTime() - start;
+		if ( sum<0 ) throw new IllegalStateException();
+		return (double)t/(ADDS / n * n);
+	}
+
+	/** Distinct String objects so lookups compare contents, as with names from the parse tree */
+	static String[] names(int n) {
+		String[] names = new String[n];
+		for (int i = 0; i < n; i++) names[i] = new String("temp"+i);
+		return names;
+	}
+}
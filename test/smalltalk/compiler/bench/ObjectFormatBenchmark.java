@@ -0,0 +1,88 @@
+package smalltalk.compiler.bench;
+
+import org.antlr.symtab.Symbol;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Compare total .sto size and time to load (decode) every class of
+ *  image.st, scaled up by renaming its classes n times, in the JSON and
+ *  binary object formats. Also compare bytes allocated writing JSON by
+ *  building a JsonObject tree versus streaming it with a JsonGenerator.
+ *
+ *  $ java smalltalk.compiler.bench.ObjectFormatBenchmark [copies]
+ */
+public class ObjectFormatBenchmark {
+	public static void main(String[] args) throws IOException {
+		int copies = args.length>0 ? Integer.parseInt(args[0]) : 20;
+		Compiler c = new Compiler();
+		STSymbolTable symtab = c.compile("image.st", CompilePassesBenchmark.scaledImage(copies));
+		List<STClass> classes = new ArrayList<>();
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) classes.add((STClass) s);
+		}
+		System.out.printf("image.st x %d = %d classes%n", copies, classes.size());
+		for (ObjectFormat format : ObjectFormat.values()) {
+			List<byte[]> objs = new ArrayList<>();
+			long size = 0;
+			for (STClass cl : classes) {
+				byte[] obj = format.encode(cl);
+				objs.add(obj);
+				size += obj.length;
+			}
+			for (int i = 0; i < 20; i++) load(objs); // warm up
+			int n = 20;
+			long start = System.nanoTime();
+			for (int i = 0; i < n; i++) load(objs);
+			long t = System.nanoTime() - start;
+			System.out.printf("%-6s %8.1f KB, load %6.2f ms%n", format.name().toLowerCase(), size/1024.0, t/1e6/n);
+		}
+		for (int i = 0; i < 20; i++) { // warm up
+			writeTree(classes);
+			writeStream(classes);
+		}
+		com.sun.management.ThreadMXBean mx =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		long before = mx.getThreadAllocatedBytes(tid);
+		writeTree(classes);
+		long tree = mx.getThreadAllocatedBytes(tid) - before;
+		before = mx.getThreadAllocatedBytes(tid);
+		writeStream(classes);
+		long stream = mx.getThreadAllocatedBytes(tid) - before;
+		System.out.printf("write json: JsonObject tree %.1f KB allocated, JsonGenerator %.1f KB allocated%n",
+		                  tree/1024.0, stream/1024.0);
+	}
+
+	static void writeTree(List<STClass> classes) throws IOException {
+		for (STClass cl : classes) {
+			NULL.write(cl.serialize().toString().getBytes(), 0, 0);
+		}
+	}
+
+	static void writeStream(List<STClass> classes) throws IOException {
+		for (STClass cl : classes) {
+			ObjectFormat.JSON.write(cl, new BufferedOutputStream(NULL));
+		}
+	}
+
+	/** Discards everything so we measure serialization, not I/O */
+	static final OutputStream NULL = new OutputStream() {
+		@Override public void write(int b) { }
+		@Override public void write(byte[] b, int off, int len) { }
+	};
+
+	static void load(List<byte[]> objs) {
+		for (byte[] obj : objs) {
+			if ( ObjectFormat.load(obj).name==null ) throw new IllegalStateException();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package smalltalk.compiler.bench;
+
+import org.antlr.v4.runtime.CharStreams;
+import smalltalk.compiler.Compiler;
+
+/** Time parsing image.st scaled up n times with full LL prediction versus
+ *  SLL with LL fallback.
+ *
+ *  $ java smalltalk.compiler.bench.ParseBenchmark [copies]
+ */
+public class ParseBenchmark {
+	public static void main(String[] args) {
+		int copies = args.length>0 ? Integer.parseInt(args[0]) : 200;
+		String image = CompilePassesBenchmark.scaledImage(copies);
+		System.out.printf("image.st x %d = %d lines%n", copies, image.split("\n").length);
+		for (int i = 0; i < 5; i++) { // warm up
+			time(image, false);
+			time(image, true);
+		}
+		int n = 10;
+		long ll = 0, twoStage = 0;
+		for (int i = 0; i < n; i++) {
+			ll += time(image, false);
+			twoStage += time(image, true);
+		}
+		System.out.printf("parse: LL %.1f ms, SLL then LL %.1f ms, saved %.1f%%%n",
+		                  ll/1e6/n, twoStage/1e6/n, 100.0*(ll-twoStage)/ll);
+	}
+
+	static long time(String input, boolean twoStageParse) {
+		Compiler c = new Compiler();
+		c.twoStageParse = twoStageParse;
+		long start = System.nanoTime();
+		if ( c.parseClasses(CharStreams.fromString(input))==null ) throw new IllegalStateException("syntax error");
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,56 @@
+package smalltalk.compiler.bench;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.misc.Utils;
+import smalltalk.compiler.STC;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+/** Compare bytes allocated and time to load image.st scaled up n times:
+ *  readFile+String+ANTLRInputStream versus decoding a file channel
+ *  into a code-point stream.
+ *
+ *  $ java smalltalk.compiler.bench.SourceLoadingBenchmark [copies]
+ */
+public class SourceLoadingBenchmark {
+	public static void main(String[] args) throws IOException {
+		int copies = args.length>0 ? Integer.parseInt(args[0]) : 200;
+		File f = File.createTempFile("image", ".st");
+		f.deleteOnExit();
+		Files.write(f.toPath(), CompilePassesBenchmark.scaledImage(copies).getBytes());
+		System.out.printf("image.st x %d = %d bytes%n", copies, f.length());
+		for (int i = 0; i < 10; i++) { // warm up
+			loadCopying(f.getPath());
+			STC.loadCharStream(f.getPath());
+		}
+		long[] copying = measure(() -> loadCopying(f.getPath()));
+		long[] channel = measure(() -> STC.loadCharStream(f.getPath()));
+		System.out.printf("readFile+String+ANTLRInputStream: %.1f ms, %.1f MB allocated%n", copying[0]/1e6, copying[1]/1e6);
+		System.out.printf("channel code-point stream:        %.1f ms, %.1f MB allocated%n", channel[0]/1e6, channel[1]/1e6);
+	}
+
+	interface Loader { CharStream load() throws IOException; }
+
+	static CharStream loadCopying(String fileName) throws IOException {
+		return new ANTLRInputStream(new String(Utils.readFile(fileName)));
+	}
+
+	/** Return average {nanoseconds, bytes allocated} per load */
+	static long[] measure(Loader loader) throws IOException {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		int n = 20;
+		long bytes = bean.getThreadAllocatedBytes(tid);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			if ( loader.load().size()==0 ) throw new IllegalStateException("empty");
+		}
+		long t = System.nanoTime() - start;
+		bytes = bean.getThreadAllocatedBytes(tid) - bytes;
+		return new long[] {t/n, bytes/n};
+	}
+}
@@ -0,0 +1,103 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.ObjectFile;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STCompiledBlock.ClosureKind;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestBlockClassifier {
+	@Test public void testClean() {
+		assertEquals("[CLEAN]", kinds("f: c [ ^c collect: [:x | |y| y := x + 1. y] ]"));
+		assertEquals("[CLEAN]", kinds("f [ ^[Transcript show: 'hi'] ]"));
+	}
+
+	@Test public void testCopying() {
+		assertEquals("[COPYING]", kinds("f: c [ ^c collect: [:x | x + c] ]"));       // argument
+		assertEquals("[COPYING]", kinds("f: c [ ^c collect: [:x | x + a] ]"));       // field
+		assertEquals("[COPYING]", kinds("f: c [ ^c do: [:x | a := x] ]"));           // via self
+		assertEquals("[COPYING]", kinds("f: c [ ^c do: [:x | super foo] ]"));
+	}
+
+	@Test public void testFull() {
+		assertEquals("[FULL]", kinds("f: c [ c do: [:x | ^x]. ^nil ]"));
+		assertEquals("[FULL]", kinds("f: c [ |t| t := 0. c do: [:x | t := t + x]. ^t ]"));
+		assertEquals("[FULL]", kinds("f: c [ |t| t := 0. ^c collect: [:x | x + t] ]")); // t could change
+	}
+
+	@Test public void testNestedBlocks() {
+		// the outer block captures nothing; the inner copies the outer's argument
+		assertEquals("[CLEAN, COPYING]", kinds("f [ ^[:x | [:y | x + y]] ]"));
+		// the outer block has to supply self and the home method to the inner
+		assertEquals("[COPYING, COPYING]", kinds("f [ ^[[self]] ]"));
+		assertEquals("[FULL, FULL]", kinds("f [ ^[[^1]] ]"));
+		assertEquals("[COPYING, FULL]", kinds("f: c [ ^[|t| [t := c]] ]"));
+	}
+
+	@Test public void testInlinedLoopVariableIsStored() {
+		Compiler c = new Compiler();
+		c.inlineControlFlow = true;
+		STClass t = compile("class T [ f: c [ 1 to: 3 do: [:i | c add: [i]] ] ]", c);
+		STCompiledBlock[] blocks = t.resolveMethod("f:").compiledBlock.blocks;
+		assertEquals(ClosureKind.FULL, blocks[0].closureKind);    // i is in f:'s frame, stored each time round
+		assertEquals(ClosureKind.COPYING, blocks[2].closureKind); // i is the fallback block's argument
+	}
+
+	@Test public void testPushCleanBlock() {
+		Compiler c = new Compiler();
+		c.cleanBlocks = true;
+		STClass t = compile("class T [ f: c [ ^c collect: [:x | x] ] g: c [ ^c collect: [:x | c] ] ]", c);
+		String expecting =
+			"0000:  push_local     0, 0\n" +
+			"0005:  push_clean_block 0\n" +
+			"0008:  send           1, 'collect:'\n" +
+			"0013:  return           \n";
+		assertEquals(expecting, disassemble(t, t.resolveMethod("f:").compiledBlock).substring(0, expecting.length()));
+		assertEquals(-1, disassemble(t, t.resolveMethod("g:").compiledBlock).indexOf("clean"));
+	}
+
+	@Test public void testOffByDefault() {
+		STClass t = compile("class T [ f: c [ ^c collect: [:x | x] ] ]", new Compiler());
+		assertEquals(-1, disassemble(t, t.resolveMethod("f:").compiledBlock).indexOf("clean"));
+		assertEquals(ClosureKind.CLEAN, t.resolveMethod("f:").compiledBlock.blocks[0].closureKind);
+		assertNull(t.resolveMethod("f:").compiledBlock.closureKind);
+	}
+
+	@Test public void testObjectFileHasClosureKinds() {
+		STClass t = compile("class T [ f [ ^[:x | [:y | x + y]] ] ]", new Compiler());
+		for (ObjectFormat format : ObjectFormat.values()) {
+			ObjectFile obj = ObjectFormat.load(format.encode(t));
+			assertNull(obj.methods[0].closureKind);
+			assertEquals(ClosureKind.CLEAN, obj.methods[0].blocks[0].closureKind);
+			assertEquals(ClosureKind.COPYING, obj.methods[0].blocks[1].closureKind);
+		}
+	}
+
+	/** Closure kinds of the blocks of unary or one-keyword method in T with field a, in index order */
+	static String kinds(String method) {
+		STClass t = compile("class T : Object [ |a| "+method+" ]", new Compiler());
+		STCompiledBlock m = t.resolveMethod(method.substring(0, method.indexOf(' '))).compiledBlock;
+		StringBuilder buf = new StringBuilder("[");
+		for (STCompiledBlock blk : m.blocks) {
+			if ( buf.length()>1 ) buf.append(", ");
+			buf.append(blk.closureKind);
+		}
+		return buf.append("]").toString();
+	}
+
+	static STClass compile(String input, Compiler c) {
+		STClass t = (STClass)c.compile("t.st", input).GLOBALS.resolve("T");
+		assertEquals("[]", c.errors.toString());
+		return t;
+	}
+
+	static String disassemble(STClass t, STCompiledBlock blk) {
+		return Bytecode.disassemble(blk.name, blk.bytecode, t.stringTable.toArray(), 0);
+	}
+}
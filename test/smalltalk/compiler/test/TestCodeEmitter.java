@@ -0,0 +1,56 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.CodeEmitter;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCodeEmitter {
+	@Test public void testOperandsAreBigEndian() {
+		CodeEmitter code = new CodeEmitter();
+		code.emitShorts(Bytecode.PUSH_LOCAL, 1, 2);
+		code.emitInt(Bytecode.PUSH_INT, 100);
+		code.emitChar(Bytecode.PUSH_CHAR, 'a');
+		byte[] bytes = code.bytes();
+		assertEquals(1, Bytecode.getShort(bytes, 1));
+		assertEquals(2, Bytecode.getShort(bytes, 3));
+		assertEquals(100, Bytecode.getInt(bytes, 6));
+		assertEquals('a', Bytecode.getShort(bytes, 11));
+		assertEquals(13, bytes.length);
+	}
+
+	@Test public void testForwardAndBackwardLabels() {
+		CodeEmitter code = new CodeEmitter();
+		CodeEmitter.Label top = code.newLabel();
+		CodeEmitter.Label end = code.newLabel();
+		code.mark(top);
+		code.emit(Bytecode.NIL);
+		code.emitJump(Bytecode.PUSH_INT, end);  // any opcode with 4-byte operand
+		code.emitJump(Bytecode.PUSH_INT, top);
+		code.mark(end);
+		code.emit(Bytecode.RETURN);
+		byte[] bytes = code.bytes();
+		assertEquals(11, Bytecode.getInt(bytes, 2));
+		assertEquals(0, Bytecode.getInt(bytes, 7));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUnmarkedLabel() {
+		CodeEmitter code = new CodeEmitter();
+		code.emitJump(Bytecode.PUSH_INT, code.newLabel());
+		code.bytes();
+	}
+
+	@Test public void testCharLiteralOperand() {
+		Compiler c = new Compiler();
+		STClass main = (STClass)c.compile("t.st", "$a.").GLOBALS.resolve("MainClass");
+		byte[] bytes = main.resolveMethod("main").compiledBlock.bytecode;
+		assertEquals(Arrays.toString(new byte[] {Bytecode.PUSH_CHAR, 0, 'a'}),
+		             Arrays.toString(Arrays.copyOf(bytes, 3)));
+	}
+}
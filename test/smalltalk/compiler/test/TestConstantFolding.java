@@ -0,0 +1,107 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestConstantFolding {
+	@Test public void testLeftToRight() {
+		String expecting =
+			"0000:  push_int       14\n" +
+			"0005:  return           \n";
+		assertEquals(expecting, compileWithImage("3 + 4 * 2", true));
+	}
+
+	@Test public void testLiteralPrefixOnly() {
+		String expecting =
+			"0000:  push_int       7\n" +
+			"0005:  push_local     0, 0\n" +
+			"0010:  send           1, '*'\n" +
+			"0015:  push_int       1\n" +
+			"0020:  send           1, '-'\n" +
+			"0025:  return           \n";
+		assertEquals(expecting, compileWithImage("3 + 4 * x - 1", true));
+	}
+
+	@Test public void testParenthesizedSubexpression() {
+		String expecting =
+			"0000:  push_local     0, 0\n" +
+			"0005:  push_int       6\n" +
+			"0010:  send           1, '+'\n" +
+			"0015:  return           \n";
+		assertEquals(expecting, compileWithImage("x + (1 + 2 * 2)", true));
+	}
+
+	@Test public void testComparisonAndStrings() {
+		assertEquals("0000:  true             \n0001:  return           \n",
+		             compileWithImage("1 + 1 <= 2", true));
+		assertEquals("0000:  push_literal   'ab'\n0003:  return           \n",
+		             compileWithImage("'a' , 'b'", true));
+		assertEquals("0000:  false            \n0001:  return           \n",
+		             compileWithImage("'a' = 'b'", true));
+		assertEquals("0000:  push_float     2.5\n0005:  return           \n",
+		             compileWithImage("1.5 + 1.0", true));
+	}
+
+	@Test public void testNoFoldAtRunTimeErrorsOrMixedTypes() {
+		String expecting =
+			"0000:  push_int       1\n" +
+			"0005:  push_int       0\n" +
+			"0010:  send           1, '/'\n" +
+			"0015:  return           \n";
+		assertEquals(expecting, compileWithImage("1 / 0", true));
+		expecting =
+			"0000:  push_int       1\n" +
+			"0005:  push_float     1.5\n" +
+			"0010:  send           1, '+'\n" +
+			"0015:  return           \n";
+		assertEquals(expecting, compileWithImage("1 + 1.5", true));
+	}
+
+	@Test public void testNoFoldWithoutOption() {
+		String expecting =
+			"0000:  push_int       3\n" +
+			"0005:  push_int       4\n" +
+			"0010:  send           1, '+'\n" +
+			"0015:  return           \n";
+		assertEquals(expecting, compileWithImage("3 + 4", false));
+	}
+
+	@Test public void testNoFoldWithoutImage() {
+		Compiler c = new Compiler();
+		c.foldConstants = true;
+		STClass t = (STClass)c.compile("t.st", "class T [ f [ ^3 + 4 ] ]").GLOBALS.resolve("T");
+		assertEquals(3, Bytecode.getInt(t.resolveMethod("f").compiledBlock.bytecode, 1));
+	}
+
+	@Test public void testNoFoldIfSelectorRedefined() {
+		String image = STC.loadFile("image.st")
+			.replace("+ y <primitive:#Integer_ADD>", "+ y [ ^0 ]");
+		String expecting =
+			"0000:  push_int       3\n" +
+			"0005:  push_int       4\n" +
+			"0010:  send           1, '+'\n" +
+			"0015:  return           \n";
+		assertEquals(expecting, compile(image, "3 + 4", true));
+	}
+
+	static String compileWithImage(String expr, boolean foldConstants) {
+		return compile(STC.loadFile("image.st"), expr, foldConstants);
+	}
+
+	/** Compile T>>f: x [ ^expr ] after image and disassemble it; ignores the dead code after ^ */
+	static String compile(String image, String expr, boolean foldConstants) {
+		Compiler c = new Compiler();
+		c.foldConstants = foldConstants;
+		String input = image+"\nclass T [ f: x [ ^"+expr+" ] ]\n";
+		STClass t = (STClass)c.compile("t.st", input).GLOBALS.resolve("T");
+		assertEquals("[]", c.errors.toString());
+		String code = Bytecode.disassemble("f:", t.resolveMethod("f:").compiledBlock.bytecode,
+		                                   t.stringTable.toArray(), 0);
+		return code.substring(0, code.indexOf("return")+"return           \n".length());
+	}
+}
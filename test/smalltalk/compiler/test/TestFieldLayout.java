@@ -0,0 +1,69 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestFieldLayout {
+	String input =
+		"class A [ |x y| ]\n" +
+		"class B : A [ |z| ]\n" +
+		"class C : B [ |w| f [ ^y + z + w ] ]\n";
+
+	@Test public void testInheritedFieldOffsets() {
+		STSymbolTable symtab = compile(input);
+		STClass c = (STClass)symtab.GLOBALS.resolve("C");
+		assertEquals(0, c.getFieldIndex("x"));
+		assertEquals(1, c.getFieldIndex("y"));
+		assertEquals(2, c.getFieldIndex("z"));
+		assertEquals(3, c.getFieldIndex("w"));
+		assertEquals(-1, c.getFieldIndex("f"));
+		assertEquals(4, c.getInstanceSize());
+		assertEquals(2, ((STClass)symtab.GLOBALS.resolve("A")).getInstanceSize());
+	}
+
+	@Test public void testFieldsOfMiddleClassUseOffsetInInstance() {
+		STClass c = (STClass)compile(input).GLOBALS.resolve("C");
+		String expecting =
+			"name: C\n" +
+			"superClass: B\n" +
+			"fields: w\n" +
+			"literals: '+'\n" +
+			"methods:\n" +
+			"    name: f\n" +
+			"    qualifiedName: C>>f\n" +
+			"    nargs: 0\n" +
+			"    nlocals: 0\n" +
+			"    0000:  push_field     1\n" +
+			"    0003:  push_field     2\n" +
+			"    0006:  send           1, '+'\n" +
+			"    0011:  push_field     3\n" +
+			"    0014:  send           1, '+'\n" +
+			"    0019:  return           \n" +
+			"    0020:  pop              \n" +
+			"    0021:  self             \n" +
+			"    0022:  return           \n";
+		assertEquals(expecting, c.toTestString());
+	}
+
+	@Test public void testInstanceSizeInObjectFile() {
+		STClass c = (STClass)compile(input).GLOBALS.resolve("C");
+		assertEquals(4, c.serialize().getInt("instanceSize"));
+	}
+
+	@Test public void testSuperclassDefinedLater() {
+		STClass c = (STClass)compile("class C : A [ |w| ]\nclass A [ |x| ]\n").GLOBALS.resolve("C");
+		assertEquals(1, c.getFieldIndex("w"));
+		assertEquals(2, c.getInstanceSize());
+	}
+
+	protected STSymbolTable compile(String input) {
+		Compiler c = new Compiler();
+		STSymbolTable symtab = c.compile("t.st", input);
+		assertEquals("[]", c.errors.toString());
+		return symtab;
+	}
+}
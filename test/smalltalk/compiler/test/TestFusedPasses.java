@@ -0,0 +1,44 @@
+package smalltalk.compiler.test;
+
+import org.antlr.symtab.Symbol;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestFusedPasses extends BaseTest {
+	@Test public void testImageSameCodeAsSeparatePasses() {
+		String image = STC.loadFile("image.st");
+		assertEquals(compile(image, false), compile(image, true));
+	}
+
+	@Test public void testCodeGenSamplesSameCodeAsSeparatePasses() {
+		for (Object[] test : getAllTestDescriptors("CodeGen")) {
+			String code = (String)test[1];
+			assertEquals(compile(code, false), compile(code, true));
+		}
+	}
+
+	@Test public void testUnknownLvalue() {
+		Compiler c = new Compiler();
+		c.compile("t.st", "x := 1.");
+		assertEquals("[unknown variable x in global>>MainClass>>main]", c.errors.toString());
+	}
+
+	protected String compile(String input, boolean fusePasses) {
+		Compiler c = new Compiler();
+		c.fusePasses = fusePasses;
+		STSymbolTable symtab = c.compile("t.st", input);
+		assertEquals("[]", c.errors.toString());
+		StringBuilder buf = new StringBuilder();
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				buf.append(((STClass) s).toTestString());
+			}
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,74 @@
+package smalltalk.compiler.test;
+
+import org.antlr.symtab.Symbol;
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.ImageArchive;
+import smalltalk.compiler.ObjectFile;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TestImageArchive extends BaseTest {
+	@Before
+	public void setUp() {
+		new File(tmpdir).mkdirs();
+		eraseFiles(tmpdir);
+	}
+
+	@Test public void testLoadsOnlyClassesAskedFor() throws Exception {
+		for (ObjectFormat format : ObjectFormat.values()) {
+			STSymbolTable symtab = STC.compile("image.st", false);
+			Path file = Paths.get(tmpdir, "image.sti");
+			ImageArchive.write(file, symtab, format);
+			ImageArchive archive = ImageArchive.open(file);
+			List<String> names = new ArrayList<>();
+			for (Symbol s : symtab.GLOBALS.getSymbols()) {
+				if ( s instanceof STClass ) names.add(s.getName());
+			}
+			assertEquals(names, new ArrayList<>(archive.getClassNames()));
+			assertEquals(0, archive.getNumberOfLoadedClasses());
+
+			STClass string = (STClass)symtab.GLOBALS.resolve("String");
+			ObjectFile loaded = archive.load("String");
+			assertEquals(ObjectFormat.load(format.encode(string)).toString(), loaded.toString());
+			assertEquals(1, archive.getNumberOfLoadedClasses());
+			assertEquals(loaded, archive.load("String"));
+			assertNull(archive.load("NoSuchClass"));
+		}
+	}
+
+	@Test public void testSTCWritesArchive() throws Exception {
+		Files.write(Paths.get(tmpdir, "t.st"), "class T [ f [ ^1 ] ]\nclass U : T [ ]\n".getBytes());
+		PrintStream out = new PrintStream(new ByteArrayOutputStream());
+		int rc = STC.run(Paths.get(tmpdir), new String[] {"-format", "binary", "-archive", "t.sti", "t.st"}, out, out);
+		assertEquals(0, rc);
+		assertFalse(Files.exists(Paths.get(tmpdir, "T.sto")));
+		ImageArchive archive = ImageArchive.open(Paths.get(tmpdir, "t.sti"));
+		assertEquals("[T, U]", archive.getClassNames().toString());
+		assertEquals("T", archive.load("U").superClassName);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadIndex() {
+		ByteBuffer buf = ByteBuffer.allocate(6+4+4+1+8);
+		buf.putInt(ImageArchive.MAGIC).putShort(ImageArchive.VERSION).putInt(1);
+		buf.putInt(1).put((byte)'T').putInt(0).putInt(1000); // runs off the end
+		ImageArchive.read(buf);
+	}
+}
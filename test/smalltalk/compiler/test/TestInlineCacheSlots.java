@@ -0,0 +1,80 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.ObjectFile;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.Superinstructions;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestInlineCacheSlots {
+	@Test public void testOneSlotPerSendSite() {
+		// 0000 push_local, 0005 push_literal, 0008 send, 0013 self,
+		// 0014 send_super, 0019 send, 0024 return
+		STClass t = compile("class T : Object [ f: x [ ^(x at: 'a') foo: super bar ] ]", new Compiler());
+		STCompiledBlock f = t.resolveMethod("f:").compiledBlock;
+		assertArrayEquals(new int[] {8, 14, 19}, Bytecode.sendSites(f.bytecode));
+		assertEquals(3, f.ncacheSlots());
+	}
+
+	@Test public void testBlocksNumberTheirOwnSites() {
+		STClass t = compile("class T [ f: x [ x do: [:e | e foo]. ^x bar ] ]", new Compiler());
+		STCompiledBlock f = t.resolveMethod("f:").compiledBlock;
+		assertEquals(2, f.ncacheSlots()); // do: and bar
+		assertEquals(1, f.blocks[0].ncacheSlots());
+	}
+
+	@Test public void testSpecialSendsHaveSlots() {
+		Compiler c = new Compiler();
+		c.specialSends = true;
+		STClass t = compile("class T [ f: x [ ^x + 1 foo: x < 2 ] ]", c);
+		STCompiledBlock f = t.resolveMethod("f:").compiledBlock;
+		assertEquals(3, f.ncacheSlots()); // + and < in case x isn't a number, foo:
+		assertEquals(3, Bytecode.sendSites(f.bytecode).length);
+	}
+
+	@Test public void testDeadCodeHasNoSlots() {
+		Compiler c = new Compiler();
+		c.optimizationLevel = 1;
+		STClass t = compile("class T [ f: x [ ^x bar. x foo ] ]", c);
+		assertEquals(1, t.resolveMethod("f:").compiledBlock.ncacheSlots());
+	}
+
+	@Test public void testInlinedFallbackSendsHaveSlots() {
+		Compiler c = new Compiler();
+		c.inlineControlFlow = true;
+		STClass t = compile("class T [ f: a [ ^a ifTrue: [1] ] ]", c);
+		assertEquals(1, t.resolveMethod("f:").compiledBlock.ncacheSlots()); // ifTrue: if a isn't a Boolean
+	}
+
+	@Test public void testSuperinstructionsKeepSites() {
+		STSymbolTable symtab = new Compiler().compile("t.st", "class T [ f: x [ ^x foo ] g: x [ ^x foo ] ]");
+		STClass t = (STClass)symtab.GLOBALS.resolve("T");
+		Superinstructions.fuse(symtab, 4);
+		STCompiledBlock f = t.resolveMethod("f:").compiledBlock;
+		assertEquals(1, Bytecode.sendSites(f.bytecode, t.instructionSet).length);
+		assertEquals(1, Bytecode.sendSites(Superinstructions.expand(f.bytecode, t.instructionSet)).length);
+		assertEquals(1, f.ncacheSlots());
+	}
+
+	@Test public void testObjectFileHasCacheSlots() {
+		STClass t = compile("class T [ f: x [ x do: [:e | e foo: e bar]. ^x baz ] ]", new Compiler());
+		for (ObjectFormat format : ObjectFormat.values()) {
+			ObjectFile obj = ObjectFormat.load(format.encode(t));
+			assertEquals(2, obj.methods[0].ncacheSlots);
+			assertEquals(2, obj.methods[0].blocks[0].ncacheSlots);
+		}
+	}
+
+	static STClass compile(String input, Compiler c) {
+		STClass t = (STClass)c.compile("t.st", input).GLOBALS.resolve("T");
+		assertEquals("[]", c.errors.toString());
+		return t;
+	}
+}
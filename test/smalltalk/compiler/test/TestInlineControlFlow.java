@@ -0,0 +1,245 @@
+package smalltalk.compiler.test;
+
+import org.antlr.symtab.Symbol;
+import org.antlr.symtab.VariableSymbol;
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.PeepholeOptimizer;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestInlineControlFlow {
+	@Test public void testIfTrueIfFalse() {
+		String expecting =
+			"0000:  push_local     0, 0\n" +
+			"0005:  jump_if_false  43, 27\n" +
+			"0014:  push_int       1\n" +
+			"0019:  store_field    0\n" +
+			"0022:  jump           46\n" +
+			"0027:  block          0\n" +     // fallback for non-Booleans
+			"0030:  block          1\n" +
+			"0033:  send           2, 'ifTrue:ifFalse:'\n" +
+			"0038:  jump           46\n" +
+			"0043:  push_field     0\n" +
+			"0046:  return           \n";
+		STClass t = compile("class T [ |x| f: a [ ^a ifTrue: [x := 1] ifFalse: [x] ] ]");
+		assertEquals(expecting, disassemble(t, t.resolveMethod("f:").compiledBlock));
+		assertEquals(2, t.resolveMethod("f:").compiledBlock.blocks.length);
+	}
+
+	@Test public void testIfFalseAndOr() {
+		String expecting =
+			"0000:  push_local     0, 0\n" +
+			"0005:  jump_if_true   37, 24\n" +
+			"0014:  push_int       1\n" +
+			"0019:  jump           38\n" +
+			"0024:  block          0\n" +
+			"0027:  send           1, 'ifFalse:'\n" +
+			"0032:  jump           38\n" +
+			"0037:  nil              \n" +
+			"0038:  return           \n";
+		STClass t = compile("class T [ f: a [ ^a ifFalse: [1] ] g: a [ ^a and: [a] ] h: a [ ^a or: [a] ] ]");
+		assertEquals(expecting, disassemble(t, t.resolveMethod("f:").compiledBlock));
+		String and = disassemble(t, t.resolveMethod("g:").compiledBlock);
+		assertEquals("0005:  jump_if_false  ", and.split("\n")[1].substring(0, 22));
+		assertEquals("false", and.split("\n")[7].substring(7, 12));
+		String or = disassemble(t, t.resolveMethod("h:").compiledBlock);
+		assertEquals("0005:  jump_if_true   ", or.split("\n")[1].substring(0, 22));
+		assertEquals("true", or.split("\n")[7].substring(7, 11));
+	}
+
+	@Test public void testWhileTrue() {
+		String expecting =
+			"0000:  push_field     0\n" +
+			"0003:  push_int       10\n" +
+			"0008:  send           1, '<'\n" +
+			"0013:  jump_if_false  57, 44\n" +
+			"0022:  push_field     0\n" +
+			"0025:  push_int       1\n" +
+			"0030:  send           1, '+'\n" +
+			"0035:  store_field    0\n" +
+			"0038:  pop              \n" +
+			"0039:  jump           0\n" +
+			"0044:  pop              \n" +     // the non-Boolean
+			"0045:  block          0\n" +
+			"0048:  block          1\n" +
+			"0051:  send           1, 'whileTrue:'\n" +
+			"0056:  pop              \n" +
+			"0057:  nil              \n" +
+			"0058:  return           \n";
+		STClass t = compile("class T [ |x| f [ ^[x < 10] whileTrue: [x := x + 1] ] ]");
+		STCompiledBlock f = t.resolveMethod("f").compiledBlock;
+		assertEquals(expecting, disassemble(t, f));
+		assertEquals(2, f.blocks.length);
+	}
+
+	@Test public void testWhileTrueNonBooleanConditionSendsWhileTrue() {
+		// the real whileTrue: decides whether the loop goes on, so a receiver
+		// of ifTrue: that ignores its argument can't make the loop spin
+		STClass t = compile("class T [ |x| f [ ^[x] whileTrue: [x := x foo] ] ]");
+		STCompiledBlock f = t.resolveMethod("f").compiledBlock;
+		String[] code = disassemble(t, f).split("\n");
+		assertEquals("0003:  jump_if_false  42, 29", code[1]);
+		assertEquals("0029:  pop              ", code[7]);
+		assertEquals("0036:  send           1, 'whileTrue:'", code[10]);
+		assertEquals("0042:  nil              ", code[12]); // exit; no jump back to the condition
+		assertEquals(-1, disassemble(t, f).indexOf("ifTrue:"));
+		assertEquals("0000:  push_field     0\n0003:  block_return     \n", disassemble(t, f.blocks[0]));
+	}
+
+	@Test public void testFallbackReusesFrameIndependentBlocks() {
+		STClass t = compile("class T [ f: a [ ^a ifTrue: [a ifTrue: [^true]] ] ]");
+		STCompiledBlock[] blocks = t.resolveMethod("f:").compiledBlock.blocks;
+		assertEquals(2, blocks.length); // [^true] once, for the inner send's fallback and in the outer's block
+		assertEquals("0000:  true             \n0001:  return           \n", disassemble(t, blocks[0]));
+		String expecting =
+			"0000:  push_local     1, 0\n" + // not inlined in a fallback block
+			"0005:  block          0\n" +
+			"0008:  send           1, 'ifTrue:'\n" +
+			"0013:  block_return     \n";
+		assertEquals(expecting, disassemble(t, blocks[1]));
+	}
+
+	@Test public void testBlockInInlinedBlockSkipsItsFrame() {
+		STClass t = compile("class T [ f: a [ ^a ifTrue: [a do: [:e | |y| a]] ] ]");
+		STCompiledBlock[] blocks = t.resolveMethod("f:").compiledBlock.blocks;
+		// [:e | |y| a] runs in f:'s frame when inlined, in the fallback [...]'s frame otherwise
+		assertEquals("0000:  push_local     1, 0\n0005:  block_return     \n", disassemble(t, blocks[0]));
+		assertEquals("0000:  push_local     2, 0\n0005:  block_return     \n", disassemble(t, blocks[2]));
+		assertEquals(1, blocks[2].nargs());
+		assertEquals(1, blocks[2].nlocals());
+	}
+
+	@Test public void testNotInlined() {
+		STClass t = compile("class T [ f: a [ |b| b := [1]. a ifTrue: b. a ifTrue: [:x | x]. ^a ifTrue: [|y| y] ] ]");
+		String code = disassemble(t, t.resolveMethod("f:").compiledBlock);
+		assertEquals(-1, code.indexOf("jump"));
+	}
+
+	@Test public void testOffByDefault() {
+		Compiler c = new Compiler();
+		STClass t = (STClass)c.compile("t.st", "class T [ f: a [ ^a ifTrue: [1] ] ]").GLOBALS.resolve("T");
+		assertEquals(-1, disassemble(t, t.resolveMethod("f:").compiledBlock).indexOf("jump"));
+	}
+
+	@Test public void testPeepholeRelocatesJumps() {
+		String expecting = // jump after ^1 is gone
+			"0000:  push_local     0, 0\n" +
+			"0005:  jump_if_false  33, 20\n" +
+			"0014:  push_int       1\n" +
+			"0019:  return           \n" +
+			"0020:  block          0\n" +
+			"0023:  send           1, 'ifTrue:'\n" +
+			"0028:  jump           34\n" +
+			"0033:  nil              \n" +
+			"0034:  pop              \n" +
+			"0035:  push_int       2\n" +
+			"0040:  return           \n";
+		STClass t = compile("class T [ f: a [ a ifTrue: [^1]. ^2 ] ]");
+		byte[] code = t.resolveMethod("f:").compiledBlock.bytecode;
+		assertEquals(expecting, disassemble(t, t.resolveMethod("f:").compiledBlock));
+		assertArrayEquals(code, PeepholeOptimizer.encode(PeepholeOptimizer.decode(code)));
+	}
+
+	@Test public void testToDoLoop() {
+		String expecting =
+			"0000:  push_int       1\n" +
+			"0005:  store_local    0, 0\n" +
+			"0010:  push_int       5\n" +
+			"0015:  store_local    0, 1\n" +
+			"0020:  pop              \n" +
+			"0021:  push_local     0, 0\n" +
+			"0026:  push_local     0, 1\n" +
+			"0031:  send           1, '<='\n" +
+			"0036:  jump_if_false  105, 85\n" +
+			"0045:  push_global    'Transcript'\n" +
+			"0048:  push_local     0, 0\n" +
+			"0053:  send           1, 'show:'\n" +
+			"0058:  pop              \n" +
+			"0059:  push_local     0, 0\n" +
+			"0064:  push_int       1\n" +
+			"0069:  send           1, '+'\n" +
+			"0074:  store_local    0, 0\n" +
+			"0079:  pop              \n" +
+			"0080:  jump           21\n" +
+			"0085:  pop              \n" +      // fallback if <= isn't Boolean
+			"0086:  push_local     0, 0\n" +
+			"0091:  push_local     0, 1\n" +
+			"0096:  block          0\n" +
+			"0099:  send           2, 'to:do:'\n" +
+			"0104:  pop              \n" +
+			"0105:  pop              \n" +
+			"0106:  self             \n" +
+			"0107:  return           \n";
+		STClass main = compile(STC.loadFile("CodeGen/ToDoLoop.st"), "MainClass");
+		STCompiledBlock m = main.resolveMethod("main").compiledBlock;
+		assertEquals(expecting, disassemble(main, m));
+		assertEquals(2, m.nlocals()); // i and the limit
+	}
+
+	@Test public void testToDoVariablesInEnclosingFrame() {
+		STClass t = compile("class T [ f: n [ |s| n to: 9 do: [:i | 1 to: i do: [:j | s := j]. n do: [:e | i]]. ^s ] ]");
+		STCompiledBlock f = t.resolveMethod("f:").compiledBlock;
+		assertEquals(5, f.nlocals()); // s, i, limit, j, limit after argument n
+		String[] code = disassemble(t, f).split("\n");
+		assertEquals("0005:  store_local    0, 2", code[1]); // i
+		assertEquals("0015:  store_local    0, 3", code[3]); // limit
+		assertEquals("0050:  store_local    0, 4", code[10]); // j
+		// [:e | i] reads i from f:'s frame
+		assertEquals("0000:  push_local     1, 2\n0005:  block_return     \n", disassemble(t, f.blocks[1]));
+	}
+
+	@Test public void testSequentialToDoLoopsShareSlots() {
+		STClass t = compile("class T [ f: n [ |s| 1 to: n do: [:i | s := i]. 1 to: n do: [:j | s := s + j]. ^s ] ]");
+		STCompiledBlock f = t.resolveMethod("f:").compiledBlock;
+		assertEquals(3, f.nlocals()); // s and one i and limit for both loops
+		String code = disassemble(t, f);
+		assertEquals(-1, code.indexOf("store_local    0, 4"));
+	}
+
+	@Test public void testCapturedToDoSlotsAreKept() {
+		STClass t = compile("class T [ f: n [ 1 to: n do: [:i | n do: [:e | i]]. 1 to: n do: [:j | n]. ^n ] ]");
+		STCompiledBlock f = t.resolveMethod("f:").compiledBlock;
+		assertEquals(4, f.nlocals()); // [:e | i] reads slot 1 after its loop, so j and its limit get 3 and 4
+		assertEquals("0000:  push_local     1, 1\n0005:  block_return     \n", disassemble(t, f.blocks[0]));
+	}
+
+	@Test public void testToDoSlotsAreNotSymbols() {
+		STClass t = compile("class T [ + n [ |s| 1 to: n do: [:i | s := i]. ^s ] f [ 1 to: 3 do: [:i | i] ] ]");
+		STMethod plus = t.resolveMethod("+");
+		assertEquals("[n, s]", plus.getSymbols().stream().filter(sym -> sym instanceof VariableSymbol).map(Symbol::getName).collect(Collectors.toList()).toString());
+		assertEquals(3, plus.compiledBlock.nlocals()); // s, i, limit
+		assertEquals(2, t.resolveMethod("f").compiledBlock.nlocals());
+	}
+
+	@Test public void testToDoNotInlined() {
+		STClass t = compile("class T [ f: b [ 1 to: 3 do: b. 1 to: 3 do: [:i :j | i]. 1 to: 3 do: [:i | |x| x]. ^1 to: 3 do: [:i | i := 2] ] ]");
+		assertEquals(-1, disassemble(t, t.resolveMethod("f:").compiledBlock).indexOf("jump"));
+		assertEquals(0, t.resolveMethod("f:").compiledBlock.nlocals());
+	}
+
+	static STClass compile(String input) {
+		return compile(input, "T");
+	}
+
+	static STClass compile(String input, String className) {
+		Compiler c = new Compiler();
+		c.inlineControlFlow = true;
+		c.optimizationLevel = 1; // drop dead code after ^
+		STClass t = (STClass)c.compile("t.st", input).GLOBALS.resolve(className);
+		assertEquals("[]", c.errors.toString());
+		return t;
+	}
+
+	static String disassemble(STClass t, STCompiledBlock blk) {
+		return Bytecode.disassemble(blk.name, blk.bytecode, t.stringTable.toArray(), 0);
+	}
+}
@@ -0,0 +1,21 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.symbols.LiteralPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLiteralPool {
+	@Test public void testIndexesAreStable() {
+		LiteralPool pool = new LiteralPool();
+		assertEquals(0, pool.add("x"));
+		assertEquals(1, pool.add("at:put:"));
+		assertEquals(0, pool.add("x"));
+		assertEquals(2, pool.add("hello"));
+		assertEquals(1, pool.indexOf("at:put:"));
+		assertEquals(-1, pool.indexOf("missing"));
+		assertEquals("hello", pool.get(2));
+		assertEquals("[x, at:put:, hello]", pool.toList().toString());
+		assertEquals(3, pool.toArray().length);
+	}
+}
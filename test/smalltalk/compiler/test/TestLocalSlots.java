@@ -0,0 +1,49 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STMethod;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestLocalSlots {
+	@Test public void testArgsThenLocalsInOrderAdded() {
+		STMethod m = new STMethod("at:put:", null);
+		m.addArgument("x");
+		m.addArgument("y");
+		m.addLocalVariable("a");
+		m.addLocalVariable("b");
+		assertEquals(0, m.getArgumentIndex("x"));
+		assertEquals(1, m.getArgumentIndex("y"));
+		assertEquals(2, m.getLocalIndex("a"));
+		assertEquals(3, m.getLocalIndex("b"));
+		assertEquals(-1, m.getLocalIndex("c"));
+		assertEquals(2, m.nargs());
+		assertEquals(2, m.nlocals());
+	}
+
+	@Test public void testDuplicateLocalIsRejected() {
+		STMethod m = new STMethod("f:", null);
+		m.addArgument("x");
+		try {
+			m.addLocalVariable("x");
+			fail("expected duplicate rejected");
+		}
+		catch (IllegalStateException ise) {
+			assertEquals("There is already an argument or local variable 'x'", ise.getMessage());
+		}
+		assertEquals(0, m.nlocals());
+	}
+
+	@Test public void testCompiledFramesNumberSlots() {
+		Compiler c = new Compiler();
+		STClass t = (STClass)c.compile("t.st", "class T [ at: x put: y [ |a b| ^a ] ]").GLOBALS.resolve("T");
+		assertEquals("[]", c.errors.toString());
+		STMethod m = t.resolveMethod("at:put:");
+		assertEquals(3, m.getLocalIndex("b"));
+		assertEquals(2, m.nargs());
+		assertEquals(2, m.nlocals());
+	}
+}
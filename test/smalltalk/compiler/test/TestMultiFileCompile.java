@@ -0,0 +1,218 @@
+package smalltalk.compiler.test;
+
+import org.antlr.symtab.Symbol;
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.BuildManifest;
+import smalltalk.compiler.CompileCache;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.ConstantFolder;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class TestMultiFileCompile extends BaseTest {
+	@Before
+	public void setUp() {
+		new File(tmpdir).mkdirs();
+		eraseFiles(tmpdir);
+	}
+
+	@Test public void testForwardRefAcrossFiles() throws IOException {
+		write("a.st",
+		      "class A : B [\n" +
+		      "    foo [ ^B new bar ]\n" +
+		      "]\n");
+		write("b.st",
+		      "class B [\n" +
+		      "    |x|\n" +
+		      "    bar [ ^x ]\n" +
+		      "]\n");
+		List<String> files = STC.findSourceFiles(tmpdir);
+		assertEquals(2, files.size());
+		String serial = toTestString(STC.compile(new STSymbolTable(), files, false, 1));
+		String parallel = toTestString(STC.compile(new STSymbolTable(), files, false, 4));
+		String expecting =
+			"name: A\n" +
+			"superClass: B\n" +
+			"fields: \n" +
+			"literals: 'bar','new','B'\n" +
+			"methods:\n" +
+			"    name: foo\n" +
+			"    qualifiedName: A>>foo\n" +
+			"    nargs: 0\n" +
+			"    nlocals: 0\n" +
+			"    0000:  push_global    'B'\n" +
+			"    0003:  send           0, 'new'\n" +
+			"    0008:  send           0, 'bar'\n" +
+			"    0013:  return           \n" +
+			"    0014:  pop              \n" +
+			"    0015:  self             \n" +
+			"    0016:  return           \n" +
+			"name: B\n" +
+			"superClass: \n" +
+			"fields: x\n" +
+			"literals: \n" +
+			"methods:\n" +
+			"    name: bar\n" +
+			"    qualifiedName: B>>bar\n" +
+			"    nargs: 0\n" +
+			"    nlocals: 0\n" +
+			"    0000:  push_field     0\n" +
+			"    0003:  return           \n" +
+			"    0004:  pop              \n" +
+			"    0005:  self             \n" +
+			"    0006:  return           \n";
+		assertEquals(expecting, serial);
+		assertEquals(serial, parallel);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testSyntaxErrorInOneFile() throws IOException {
+		write("a.st", "class A [ foo [ ^ ] ]\n");
+		write("b.st", "class B [ ]\n");
+		STC.compile(new STSymbolTable(), STC.findSourceFiles(tmpdir), false, 2);
+	}
+
+	@Test public void testMainInTwoFiles() throws IOException {
+		write("a.st", "class A [ ]\nTranscript show: 1.\n");
+		write("b.st", "Transcript show: 2.\n");
+		try {
+			STC.compile(new STSymbolTable(), STC.findSourceFiles(tmpdir), false, 2);
+			fail("expected compile errors");
+		}
+		catch (RuntimeException e) {
+			assertEquals("compile errors: [main code in more than one file: b.st]", e.getMessage());
+		}
+	}
+
+	@Test public void testIncrementalRebuildsOnlyDependents() throws IOException {
+		write("a.st", "class A : B [ foo [ ^1 ] ]\n");
+		write("b.st", "class B [ |x| bar [ ^x ] ]\n");
+		write("c.st", "class C [ baz [ ^A new foo ] ]\n");
+		write("d.st", "class D [ qux [ ^2 ] ]\n");
+		assertEquals("[A, B, C, D]", compileIncrementally());
+		assertEquals("[]", compileIncrementally());
+
+		write("b.st", "class B [ |x y| bar [ ^y ] ]\n"); // A inherits B; C refs A
+		assertEquals("[A, B, C]", compileIncrementally());
+
+		write("d.st", "class D [ qux [ ^3 ] ]\n");
+		assertEquals("[D]", compileIncrementally());
+
+		write("b.st", "class B [ |x y| bar [ ^x ] ]\n"); // same fields and selectors
+		assertEquals("[B]", compileIncrementally());
+
+		write("b.st", "class B [ |x y| bar [ ^x ] baz [ ^y ] ]\n"); // new selector
+		assertEquals("[A, B, C]", compileIncrementally());
+
+		new File(tmpdir, "C.sto").delete();
+		assertEquals("[C]", compileIncrementally());
+	}
+
+	@Test public void testCacheHitsReuseObjectFiles() throws IOException {
+		String cacheDir = tmpdir+"/cache";
+		eraseFiles(cacheDir);
+		write("a.st", "class A : B [ foo [ ^x ] ]\n");
+		write("b.st", "class B [ |x| bar [ ^x ] ]\n");
+		List<String> files = STC.findSourceFiles(tmpdir);
+
+		CompileCache cache = new CompileCache(cacheDir, 1024 * 1024);
+		STSymbolTable symtab = STC.compile(new STSymbolTable(), files, false, 2, null, cache);
+		STC.writeObjectFiles(tmpdir, symtab, null, cache);
+		assertEquals(0, cache.hits.get());
+		assertEquals(2, cache.misses.get());
+		byte[] a = Files.readAllBytes(Paths.get(tmpdir, "A.sto"));
+
+		cache = new CompileCache(cacheDir, 1024 * 1024);
+		STC.compile(new STSymbolTable(), files, false, 2, null, cache);
+		assertEquals(2, cache.hits.get());
+		assertEquals(0, cache.misses.get());
+		assertArrayEquals(a, cache.getObjectFile("A"));
+
+		write("b.st", "class B [ |y x| bar [ ^x ] ]\n"); // shifts A's field x
+		cache = new CompileCache(cacheDir, 1024 * 1024);
+		STC.compile(new STSymbolTable(), files, false, 2, null, cache);
+		assertEquals(0, cache.hits.get());
+		assertEquals(2, cache.misses.get());
+
+		cache = new CompileCache(cacheDir, 0);
+		cache.evict();
+		assertEquals(0, new File(cacheDir).list().length);
+	}
+
+	@Test public void testEditingFoldedPrimitiveRebuildsEverything() throws IOException {
+		String cacheDir = tmpdir+"/cache";
+		eraseFiles(cacheDir);
+		write("int.st", "class Integer [ + y <primitive:#Integer_ADD> ]\n");
+		write("a.st", "class A [ foo [ ^3 + 4 ] ]\n");
+		write("b.st", "class B [ bar [ ^1 ] ]\n");
+		List<String> files = STC.findSourceFiles(tmpdir);
+		Compiler options = STC.options(false, 2);
+
+		CompileCache cache = new CompileCache(cacheDir, 1024 * 1024);
+		STC.compile(new STSymbolTable(), files, options, 2, null, cache);
+		assertEquals(3, cache.misses.get());
+		byte[] folded = cache.getObjectFile("A");
+		assertEquals("[A, B, Integer]", compileIncrementally(options));
+		assertEquals("[]", compileIncrementally(options));
+
+		write("int.st", "class Integer [ + y [ ^0 ] ]\n"); // 3 + 4 must be sent now
+		cache = new CompileCache(cacheDir, 1024 * 1024);
+		STC.compile(new STSymbolTable(), files, options, 2, null, cache);
+		assertEquals(0, cache.hits.get());
+		assertEquals(3, cache.misses.get());
+		assertFalse(Arrays.equals(folded, cache.getObjectFile("A")));
+		assertEquals("[A, B, Integer]", compileIncrementally(options));
+
+		options.foldConstants = false; // nothing depends on Integer's source
+		cache = new CompileCache(cacheDir, 1024 * 1024);
+		STC.compile(new STSymbolTable(), files, options, 2, null, cache);
+		write("int.st", "class Integer [ + y [ ^1 ] ]\n");
+		cache = new CompileCache(cacheDir, 1024 * 1024);
+		STC.compile(new STSymbolTable(), files, options, 2, null, cache);
+		assertEquals(2, cache.hits.get());
+	}
+
+	/** Compile all files in tmpdir to tmpdir; return sorted list of rebuilt classes */
+	protected String compileIncrementally() throws IOException {
+		return compileIncrementally(STC.options(false, 0));
+	}
+
+	protected String compileIncrementally(Compiler options) throws IOException {
+		BuildManifest manifest = BuildManifest.load(tmpdir, false, ObjectFormat.JSON, options.getCodeGenOptions());
+		manifest.dependencies = ConstantFolder.dependencies(options);
+		STSymbolTable symtab = STC.compile(new STSymbolTable(), STC.findSourceFiles(tmpdir), options, 2, manifest, null);
+		STC.writeObjectFiles(tmpdir, symtab, manifest, null);
+		manifest.save();
+		return new TreeSet<>(manifest.getStaleClasses()).toString();
+	}
+
+	protected void write(String fileName, String content) throws IOException {
+		Files.write(Paths.get(tmpdir, fileName), content.getBytes());
+	}
+
+	protected String toTestString(STSymbolTable symtab) {
+		StringBuilder buf = new StringBuilder();
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				buf.append(((STClass) s).toTestString());
+			}
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,142 @@
+package smalltalk.compiler.test;
+
+import org.antlr.symtab.Symbol;
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.ObjectFile;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.Superinstructions;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestObjectFormat extends BaseTest {
+	@Before
+	public void setUp() {
+		new File(tmpdir).mkdirs();
+		eraseFiles(tmpdir);
+	}
+
+	@Test public void testBinaryHoldsSameInfoAsJSON() {
+		STSymbolTable symtab = STC.compile("image.st", false);
+		int n = 0;
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				STClass cl = (STClass)s;
+				byte[] json = ObjectFormat.JSON.encode(cl);
+				byte[] binary = ObjectFormat.BINARY.encode(cl);
+				assertEquals(ObjectFormat.load(json).toString(), ObjectFormat.load(binary).toString());
+				assertTrue(binary.length < json.length);
+				n++;
+			}
+		}
+		assertTrue(n > 10);
+	}
+
+	@Test public void testStreamedJSONSameAsTree() throws Exception {
+		STSymbolTable symtab = STC.compile("image.st", false);
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				STClass cl = (STClass)s;
+				String tree = cl.serialize().toString();
+				assertEquals(tree, new String(ObjectFormat.JSON.encode(cl), "UTF-8"));
+				STC.writeObjectFile(tmpdir, cl);
+				assertEquals(tree, new String(Files.readAllBytes(Paths.get(tmpdir, cl.getName()+".sto")), "UTF-8"));
+			}
+		}
+	}
+
+	@Test public void testSTCWritesBinary() throws Exception {
+		Files.write(Paths.get(tmpdir, "t.st"), "class T : Object [ |x| foo: y [ ^x + y ] ]\n".getBytes());
+		PrintStream out = new PrintStream(new ByteArrayOutputStream());
+		int rc = STC.run(Paths.get(tmpdir), new String[] {"-format", "binary", "t.st"}, out, out);
+		assertEquals(0, rc);
+		byte[] obj = Files.readAllBytes(Paths.get(tmpdir, "T.sto"));
+		assertEquals(ObjectFormat.BINARY, ObjectFormat.of(obj));
+		ObjectFile T = ObjectFormat.load(obj);
+		assertEquals("T", T.name);
+		assertEquals("Object", T.superClassName);
+		assertEquals(1, T.instanceSize);
+		assertEquals("foo:", T.methods[0].name);
+		assertEquals(1, T.methods[0].nargs);
+	}
+
+	@Test public void testOptionalTablesOnlyIfUsed() {
+		Compiler c = new Compiler();
+		c.shortForms = true;
+		c.specialSends = true;
+		c.optimizationLevel = 1; // no dead pop;self;return for U to share
+		STSymbolTable symtab = c.compile("t.st",
+			"class T [ f: x [ ^x + 1 ] g: x [ ^x + 1 ] ]\n"+
+			"class U [ f: x [ ^x , x ] ]\n");
+		assertEquals("[]", c.errors.toString());
+		Superinstructions.fuse(symtab, 1);
+		STClass T = (STClass)symtab.GLOBALS.resolve("T");
+		STClass U = (STClass)symtab.GLOBALS.resolve("U");
+		assertTrue(T.serialize().containsKey("specialSelectors"));
+		assertTrue(T.serialize().containsKey("superinstructions"));
+		assertFalse(U.serialize().containsKey("specialSelectors"));
+		assertFalse(U.serialize().containsKey("superinstructions"));
+		for (ObjectFormat format : ObjectFormat.values()) {
+			ObjectFile t = ObjectFormat.load(format.encode(T));
+			assertTrue(t.specialSelectors.length > 0);
+			assertEquals(1, t.superinstructions.length);
+			ObjectFile u = ObjectFormat.load(format.encode(U));
+			assertEquals(0, u.specialSelectors.length);
+			assertEquals(0, u.superinstructions.length);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsUnknownVersion() {
+		ByteBuffer buf = ByteBuffer.allocate(6);
+		buf.putInt(ObjectFile.MAGIC).putShort((short)(ObjectFile.VERSION+1));
+		ObjectFormat.BINARY.decode(buf.array());
+	}
+
+	@Test public void testRejectsJSONWithoutVersion() {
+		String old = "{\"superinstructions\":[],\"name\":\"T\",\"literals\":[],\"fields\":[],\"methods\":[]}";
+		try {
+			ObjectFormat.JSON.decode(old.getBytes(StandardCharsets.UTF_8));
+			fail("decoded JSON with no version");
+		}
+		catch (IllegalArgumentException iae) {
+			assertEquals("object file has no version; it predates version "+ObjectFile.VERSION, iae.getMessage());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsUnknownJSONVersion() {
+		STClass cl = (STClass)STC.compile("image.st", false).GLOBALS.resolve("Object");
+		String json = cl.serialize().toString().replace("\"version\":"+ObjectFile.VERSION, "\"version\":"+(ObjectFile.VERSION+1));
+		ObjectFormat.JSON.decode(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsJSONMissingKey() {
+		String json = "{\"version\":"+ObjectFile.VERSION+",\"name\":\"T\"}";
+		ObjectFormat.JSON.decode(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsTruncatedFile() {
+		STClass cl = (STClass)STC.compile("image.st", false).GLOBALS.resolve("Object");
+		byte[] binary = ObjectFormat.BINARY.encode(cl);
+		ObjectFormat.BINARY.decode(Arrays.copyOf(binary, binary.length/2));
+	}
+}
@@ -0,0 +1,119 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Code;
+import smalltalk.compiler.CodeEmitter;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.PeepholeOptimizer;
+import smalltalk.compiler.symbols.STClass;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestPeephole {
+	@Test public void testDeadCodeAfterReturn() {
+		String code = compile("class T [ |x| f [ ^x ] ]", "T", "f", 1);
+		String expecting =
+			"0000:  push_field     0\n" +
+			"0003:  return           \n";
+		assertEquals(expecting, code);
+	}
+
+	@Test public void testDeadCodeAfterBlockReturn() {
+		String code = compile("class T [ f [ ^[:x | ^x] ] ]", "T", "f-block0", 1);
+		String expecting =
+			"0000:  push_local     0, 0\n" +
+			"0005:  return           \n";
+		assertEquals(expecting, code);
+	}
+
+	@Test public void testPushPopRemoved() {
+		String code = compile("class T [ |x| f [ x. 1. 'a'. $c. self. ^x ] ]", "T", "f", 1);
+		String expecting =
+			"0000:  push_field     0\n" +
+			"0003:  return           \n";
+		assertEquals(expecting, code);
+	}
+
+	@Test public void testGlobalAndSendKept() {
+		String code = compile("class T [ f [ Foo. self g. ^nil ] ]", "T", "f", 1);
+		String expecting =
+			"0000:  push_global    'Foo'\n" +
+			"0003:  pop              \n" +
+			"0004:  self             \n" +
+			"0005:  send           0, 'g'\n" +
+			"0010:  pop              \n" +
+			"0011:  nil              \n" +
+			"0012:  return           \n";
+		assertEquals(expecting, code);
+	}
+
+	@Test public void testNotOptimizedAtO0() {
+		String code = compile("class T [ |x| f [ ^x ] ]", "T", "f", 0);
+		String expecting =
+			"0000:  push_field     0\n" +
+			"0003:  return           \n" +
+			"0004:  pop              \n" +
+			"0005:  self             \n" +
+			"0006:  return           \n";
+		assertEquals(expecting, code);
+	}
+
+	@Test public void testSavingsCounted() {
+		Compiler c = new Compiler();
+		c.optimizationLevel = 1;
+		c.compile("t.st", "class T [ |x| f [ ^x ] g [ x. ^x ] ]");
+		assertEquals(2, c.peephole.blocksOptimized.get());
+		assertEquals(3+3+2, c.peephole.instructionsSaved.get());
+		assertEquals(3+3+4, c.peephole.bytesSaved.get());
+		assertEquals(7+11, c.peephole.bytesBefore.get());
+	}
+
+	@Test public void testWideOperandsSurviveRewrite() {
+		CodeEmitter code = new CodeEmitter();
+		code.emitShorts(Bytecode.PUSH_LOCAL, 1, Code.MAX_SHORT_OPERAND+1);
+		code.emit(Bytecode.POP);
+		code.emitShort(Bytecode.PUSH_FIELD, Code.MAX_SHORT_OPERAND+1);
+		code.emit(Bytecode.RETURN);
+		code.emit(Bytecode.NIL);
+		byte[] optimized = new PeepholeOptimizer().optimize(code.bytes());
+		CodeEmitter expecting = new CodeEmitter();
+		expecting.emitShort(Bytecode.PUSH_FIELD, Code.MAX_SHORT_OPERAND+1);
+		expecting.emit(Bytecode.RETURN);
+		assertArrayEquals(expecting.bytes(), optimized);
+	}
+
+	@Test public void testPluggableRule() {
+		PeepholeOptimizer peephole = new PeepholeOptimizer();
+		peephole.rules.clear();
+		peephole.addRule((code, i) -> { // self return -> nil return
+			if ( i+1>=code.size() || code.get(i).opcode!=Bytecode.SELF ||
+				 code.get(i+1).opcode!=Bytecode.RETURN )
+			{
+				return false;
+			}
+			code.set(i, new PeepholeOptimizer.Instr(Bytecode.NIL));
+			return true;
+		});
+		byte[] code = {Bytecode.SELF, Bytecode.RETURN};
+		assertEquals(Arrays.toString(new byte[] {Bytecode.NIL, Bytecode.RETURN}),
+		             Arrays.toString(peephole.optimize(code)));
+	}
+
+	static String compile(String input, String className, String blockName, int optimizationLevel) {
+		Compiler c = new Compiler();
+		c.optimizationLevel = optimizationLevel;
+		STClass cl = (STClass)c.compile("t.st", input).GLOBALS.resolve(className);
+		assertEquals("[]", c.errors.toString());
+		String[] literals = cl.stringTable.toArray();
+		String[] path = blockName.split("-");
+		byte[] code = cl.resolveMethod(path[0]).compiledBlock.bytecode;
+		if ( path.length>1 ) {
+			code = cl.resolveMethod(path[0]).compiledBlock.blocks[Integer.parseInt(path[1].substring(5))].bytecode;
+		}
+		return Bytecode.disassemble(blockName, code, literals, 0);
+	}
+}
@@ -0,0 +1,119 @@
+package smalltalk.compiler.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.ObjectFile;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.STCDaemon;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSTCDaemon extends BaseTest {
+	STCDaemon daemon;
+	int port;
+	Path tokenFile;
+
+	@Before
+	public void setUp() throws IOException {
+		new File(tmpdir).mkdirs();
+		eraseFiles(tmpdir);
+		tokenFile = Paths.get(tmpdir, "daemon.token");
+		daemon = new STCDaemon(0, tokenFile);
+		port = daemon.start();
+		Thread serving = new Thread(() -> {
+			try {
+				daemon.serve();
+			}
+			catch (IOException ioe) {
+				throw new RuntimeException(ioe);
+			}
+		});
+		serving.setDaemon(true);
+		serving.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		daemon.close();
+	}
+
+	@Test public void testCompile() throws IOException {
+		Files.write(Paths.get(tmpdir, "t.st"), "class T [ foo [ ^1 ] ]\n".getBytes());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int rc = STCDaemon.request(port, tokenFile, Paths.get(tmpdir), new String[] {"-O1", "t.st"}, new PrintStream(out));
+		assertEquals(0, rc);
+		assertTrue(out.toString(), out.toString().startsWith("peephole: 1 blocks"));
+		ObjectFile T = ObjectFormat.load(Files.readAllBytes(Paths.get(tmpdir, "T.sto")));
+		assertEquals("foo", T.methods[0].name);
+	}
+
+	@Test public void testSyntaxErrorsGoToClient() throws IOException {
+		Files.write(Paths.get(tmpdir, "t.st"), "class T [ foo [ ^ ] ]\n".getBytes());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int rc = STCDaemon.request(port, tokenFile, Paths.get(tmpdir), new String[] {"t.st"}, new PrintStream(out));
+		assertEquals(1, rc);
+		assertTrue(out.toString(), out.toString().startsWith("line 1:18 mismatched input"));
+		assertTrue(out.toString(), out.toString().contains("syntax errors in "));
+	}
+
+	@Test public void testTokenFileIsPrivate() throws IOException {
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile)));
+	}
+
+	@Test(expected = BindException.class)
+	public void testPortInUse() throws IOException {
+		new STCDaemon(port, Paths.get(tmpdir, "other.token")).start();
+	}
+
+	@Test public void testBadToken() throws IOException {
+		assertEquals("stc daemon: bad token\nexit 1\n", send("not the token\n"+tmpdir+"\nt.st\n\n"));
+	}
+
+	@Test public void testIncompleteRequest() throws IOException {
+		String token = new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8);
+		assertEquals("stc daemon: incomplete request\nexit 1\n", send(token+"\n"+tmpdir+"\nt.st\n"));
+	}
+
+	@Test public void testNoFiles() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int rc = STCDaemon.request(port, tokenFile, Paths.get(tmpdir), new String[0], new PrintStream(out));
+		assertEquals(1, rc);
+		assertTrue(out.toString(), out.toString().startsWith("$ java smalltalk.compiler.STC"));
+	}
+
+	/** Send raw request text, close our side, and return the whole response */
+	String send(String request) throws IOException {
+		try ( Socket s = new Socket(InetAddress.getLoopbackAddress(), port) ) {
+			Writer w = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+			w.write(request);
+			w.flush();
+			s.shutdownOutput();
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			StringBuilder buf = new StringBuilder();
+			String line;
+			while ( (line = in.readLine())!=null ) {
+				buf.append(line).append('\n');
+			}
+			return buf.toString();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.PeepholeOptimizer;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestShortForms {
+	@Test public void testLocalsAndFields() {
+		String expecting =
+			"0000:  push_local_0     \n" +
+			"0001:  store_field_0    \n" +
+			"0002:  pop              \n" +
+			"0003:  push_local_1     \n" +
+			"0004:  store_field    4\n" +     // only fields 0..3
+			"0007:  pop              \n" +
+			"0008:  push_local_3     \n" +
+			"0009:  store_local    0, 4\n" + // only slots 0..3
+			"0014:  pop              \n" +
+			"0015:  block          0\n" +
+			"0018:  return           \n";
+		STClass t = compile("class T [ |a b c d e| f: x [ |y z w v| a := x. e := y. v := w. ^[b + v + x] ] ]");
+		STCompiledBlock f = t.resolveMethod("f:").compiledBlock;
+		assertEquals(expecting, disassemble(t, f));
+		expecting = // outer frame's slots keep the long form
+			"0000:  push_field_1     \n" +
+			"0001:  push_local     1, 4\n" +
+			"0006:  send           1, '+'\n" +
+			"0011:  push_local     1, 0\n" +
+			"0016:  send           1, '+'\n" +
+			"0021:  block_return     \n";
+		assertEquals(expecting, Bytecode.disassemble("", f.blocks[0].bytecode, t.stringTable.toArray(), 0));
+	}
+
+	@Test public void testInts() {
+		String expecting =
+			"0000:  push_int_m1      \n" +
+			"0001:  push_int_0       \n" +
+			"0002:  push_int_2       \n" +
+			"0003:  push_byte      3\n" +
+			"0005:  push_byte      -128\n" +
+			"0007:  push_byte      127\n" +
+			"0009:  push_int       128\n" +
+			"0014:  push_int       -129\n" +
+			"0019:  push_int_1       \n" +
+			"0025:  return           \n";
+		STClass t = compile("class T [ f [ ^-1 foo: 0 bar: 2 baz: 3 a: -128 b: 127 c: 128 d: -129 e: 1 ] ]");
+		String code = disassemble(t, t.resolveMethod("f").compiledBlock);
+		assertEquals(expecting, code.replaceAll("(?m)^.*send.*\n", ""));
+	}
+
+	@Test public void testOffByDefault() {
+		Compiler c = new Compiler();
+		STClass t = (STClass)c.compile("t.st", "class T [ |a| f [ ^a + 1 ] ]").GLOBALS.resolve("T");
+		String code = disassemble(t, t.resolveMethod("f").compiledBlock);
+		assertEquals("0003:  push_int       1", code.split("\n")[1]);
+	}
+
+	@Test public void testPeepholeDropsShortPushes() {
+		STClass t = compile("class T [ |a| f: x [ x. a. -5. ^x ] ]");
+		assertEquals("0000:  push_local_0     \n0001:  return           \n", disassemble(t, t.resolveMethod("f:").compiledBlock));
+		STClass unoptimized = compile("class T [ |a| f: x [ a. -5. ^x ] ]", 0);
+		byte[] withPops = unoptimized.resolveMethod("f:").compiledBlock.bytecode;
+		assertArrayEquals(withPops, PeepholeOptimizer.encode(PeepholeOptimizer.decode(withPops)));
+	}
+
+	static STClass compile(String input) {
+		return compile(input, 1);
+	}
+
+	static STClass compile(String input, int optimizationLevel) {
+		Compiler c = new Compiler();
+		c.shortForms = true;
+		c.optimizationLevel = optimizationLevel; // drop dead code after ^
+		STClass t = (STClass)c.compile("t.st", input).GLOBALS.resolve("T");
+		assertEquals("[]", c.errors.toString());
+		return t;
+	}
+
+	static String disassemble(STClass t, STCompiledBlock blk) {
+		return Bytecode.disassemble(blk.name, blk.bytecode, t.stringTable.toArray(), 0);
+	}
+}
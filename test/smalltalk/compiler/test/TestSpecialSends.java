@@ -0,0 +1,97 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.ObjectFile;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.PeepholeOptimizer;
+import smalltalk.compiler.symbols.STClass;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestSpecialSends {
+	@Test public void testArithmeticAndComparison() {
+		String expecting =
+			"0000:  push_local     0, 0\n" +
+			"0005:  push_int       1\n" +
+			"0010:  send_add       '+'\n" +
+			"0011:  push_local     0, 0\n" +
+			"0016:  send_mul       '*'\n" +
+			"0017:  push_int       2\n" +
+			"0022:  send_le        '<='\n" +
+			"0023:  return           \n";
+		STClass t = compile("class T [ f: x [ ^x + 1 * x <= 2 ] ]", true);
+		assertEquals(expecting, disassemble(t, "f:"));
+		assertEquals("[]", Arrays.toString(t.stringTable.toArray())); // selectors are implied
+	}
+
+	@Test public void testOtherBinarySendsUseSend() {
+		String expecting =
+			"0000:  push_local     0, 0\n" +
+			"0005:  push_local     0, 0\n" +
+			"0010:  send           1, ','\n" +
+			"0015:  push_local     0, 0\n" +
+			"0020:  send           1, '=='\n" +
+			"0025:  push_local     0, 0\n" +
+			"0030:  send_sub       '-'\n" +
+			"0031:  return           \n";
+		assertEquals(expecting, disassemble(compile("class T [ f: x [ ^x , x == x - x ] ]", true), "f:"));
+	}
+
+	@Test public void testOffByDefault() {
+		String code = disassemble(compile("class T [ f: x [ ^x + 1 ] ]", false), "f:");
+		assertEquals("0010:  send           1, '+'", code.split("\n")[2]);
+	}
+
+	@Test public void testSelectorForEachOpcode() {
+		for (int i = 0; i < Bytecode.specialSelectors.length; i++) {
+			short opcode = Bytecode.specialSend(Bytecode.specialSelectors[i]);
+			assertEquals(Bytecode.SEND_ADD+i, opcode);
+			assertEquals(Bytecode.specialSelectors[i], Bytecode.specialSelector(opcode));
+		}
+		assertEquals(0, Bytecode.specialSend(","));
+		assertEquals(null, Bytecode.specialSelector(Bytecode.SEND));
+	}
+
+	@Test public void testObjectFileHasSelectors() {
+		STClass t = compile("class T [ f: x [ ^x = 1 ] ]", true);
+		for (ObjectFormat format : ObjectFormat.values()) {
+			ObjectFile obj = ObjectFormat.load(format.encode(t));
+			assertArrayEquals(Bytecode.specialSelectors, obj.specialSelectors);
+			assertArrayEquals(t.resolveMethod("f:").compiledBlock.bytecode, obj.methods[0].bytecode);
+		}
+	}
+
+	@Test public void testNoSelectorsWithoutSpecialSends() {
+		STClass t = compile("class T [ f: x [ ^x , x ] ]", true);
+		assertFalse(t.serialize().containsKey("specialSelectors"));
+		for (ObjectFormat format : ObjectFormat.values()) {
+			assertEquals(0, ObjectFormat.load(format.encode(t)).specialSelectors.length);
+		}
+	}
+
+	@Test public void testPeepholeRoundTrip() {
+		byte[] code = compile("class T [ f: x [ ^x / 2 >= (x - 1) ] ]", true).resolveMethod("f:").compiledBlock.bytecode;
+		assertArrayEquals(code, PeepholeOptimizer.encode(PeepholeOptimizer.decode(code)));
+	}
+
+	static STClass compile(String input, boolean specialSends) {
+		Compiler c = new Compiler();
+		c.specialSends = specialSends;
+		STClass t = (STClass)c.compile("t.st", input).GLOBALS.resolve("T");
+		assertEquals("[]", c.errors.toString());
+		return t;
+	}
+
+	/** Disassemble selector's method up to its first return */
+	static String disassemble(STClass t, String selector) {
+		String code = Bytecode.disassemble(selector, t.resolveMethod(selector).compiledBlock.bytecode,
+		                                   t.stringTable.toArray(), 0);
+		return code.substring(0, code.indexOf("return")+"return           \n".length());
+	}
+}
@@ -0,0 +1,157 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.ObjectFile;
+import smalltalk.compiler.ObjectFormat;
+import smalltalk.compiler.OpcodeStats;
+import smalltalk.compiler.PeepholeOptimizer;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.Superinstructions;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSuperinstructions {
+	static final short PUSH_INT_1 = Bytecode.PUSH_INT_M1+2;
+	static final short PUSH_INT_2 = Bytecode.PUSH_INT_M1+3;
+
+	@Test public void testCountBigramsAndTrigrams() {
+		OpcodeStats stats = new OpcodeStats();
+		stats.add(compile("class T [ f: x [ ^x + 1 ] g: x [ ^x + 2 ] ]", true));
+		assertEquals(8, stats.instructions); // push_local_0 push_int_n send_add return
+		assertEquals(2, count(stats, Bytecode.PUSH_LOCAL_0, PUSH_INT_1) +
+		                count(stats, Bytecode.PUSH_LOCAL_0, PUSH_INT_2));
+		assertEquals(2, count(stats, Bytecode.SEND_ADD, Bytecode.RETURN));
+		assertEquals(0, count(stats, Bytecode.RETURN, Bytecode.POP)); // nothing runs on from a return
+		assertEquals("push_int_1;send_add;return", OpcodeStats.toString(stats.top(1, 3).get(0).getKey())); // ties sort by name
+	}
+
+	@Test public void testNoSequencesAcrossJumps() {
+		Compiler c = new Compiler();
+		c.shortForms = true;
+		c.inlineControlFlow = true;
+		OpcodeStats stats = new OpcodeStats();
+		stats.add(((STClass)c.compile("t.st", "class T [ f: a [ ^a ifTrue: [1] ifFalse: [2] ] ]")
+			.GLOBALS.resolve("T")).resolveMethod("f:").compiledBlock);
+		// jumps end straight-line code and return is the target of a jump
+		assertEquals(0, count(stats, Bytecode.PUSH_LOCAL_0, Bytecode.JUMP_IF_FALSE));
+		assertEquals(0, count(stats, Bytecode.JUMP, PUSH_INT_2));
+		assertEquals(0, count(stats, PUSH_INT_2, Bytecode.RETURN));
+		assertEquals(1, count(stats, Bytecode.BLOCK, Bytecode.BLOCK, Bytecode.SEND)); // fallback starts at a target
+	}
+
+	@Test public void testFuse() {
+		STSymbolTable symtab = compile("class T [ |a| f: x [ ^x + 1 ] g: x [ ^x + 1 ] h [ ^a foo: 1 ] ]", true);
+		Superinstructions.fuse(symtab, 1);
+		// ties with push_local_0;push_int_1;send_add, which sorts after
+		assertArrayEquals(new short[] {PUSH_INT_1, Bytecode.SEND_ADD, Bytecode.RETURN},
+		                  symtab.instructionSet.superinstruction(Bytecode.FIRST_SUPERINSTRUCTION));
+		assertNull(symtab.instructionSet.superinstruction(Bytecode.FIRST_SUPERINSTRUCTION+1));
+		STClass t = (STClass)symtab.GLOBALS.resolve("T");
+		assertSame(symtab.instructionSet, t.instructionSet);
+		assertEquals("0000:  push_local_0     \n0001:  push_int_1+send_add+return   \n",
+		             disassemble(t, t.resolveMethod("f:").compiledBlock));
+	}
+
+	@Test public void testFusedOperands() {
+		STSymbolTable symtab = compile("class T [ f: x [ ^x at: 300 ] g: x [ ^x at: 300 ] ]", false);
+		Superinstructions.fuse(symtab, 10);
+		STClass t = (STClass)symtab.GLOBALS.resolve("T");
+		String expecting =
+			"0000:  push_local+push_int 0, 0, 300\n" +
+			"0009:  send+return    1, 'at:'\n" +
+			"0014:  pop+self+return   \n";
+		assertEquals(expecting, disassemble(t, t.resolveMethod("f:").compiledBlock));
+	}
+
+	@Test public void testImageExpandsToSameCode() {
+		STSymbolTable plain = STC.compile(new STSymbolTable(), Collections.singletonList("image.st"),
+		                                  STC.options(false, 2), 1, null, null);
+		STSymbolTable fused = STC.compile(new STSymbolTable(), Collections.singletonList("image.st"),
+		                                  STC.options(false, 2), 1, null, null);
+		PeepholeOptimizer fuser = Superinstructions.fuse(fused, 16);
+		assertEquals(16, fused.instructionSet.getSuperinstructions().size());
+		assertTrue(fuser.instructionsSaved.get() > 100);
+		List<byte[]> before = new ArrayList<>(), after = new ArrayList<>();
+		collect(plain, before);
+		collect(fused, after);
+		assertEquals(before.size(), after.size());
+		for (int i = 0; i < before.size(); i++) {
+			assertArrayEquals(before.get(i), Superinstructions.expand(after.get(i), fused.instructionSet));
+		}
+	}
+
+	@Test public void testObjectFileListsSuperinstructions() {
+		STSymbolTable symtab = compile("class T [ f: x [ ^x + 1 ] g: x [ ^x + 1 ] ]", true);
+		Superinstructions.fuse(symtab, 2);
+		STClass t = (STClass)symtab.GLOBALS.resolve("T");
+		for (ObjectFormat format : ObjectFormat.values()) {
+			ObjectFile obj = ObjectFormat.load(format.encode(t));
+			assertEquals(Arrays.deepToString(symtab.instructionSet.getSuperinstructions().toArray()),
+			             Arrays.deepToString(obj.superinstructions));
+		}
+	}
+
+	@Test public void testBuildsKeepTheirOwnSuperinstructions() {
+		STSymbolTable a = compile("class T [ f: x [ ^x + 1 ] g: x [ ^x + 1 ] ]", true);
+		STSymbolTable b = compile("class T [ f: x [ ^x at: 300 ] g: x [ ^x at: 300 ] ]", false);
+		Superinstructions.fuse(a, 1);
+		Superinstructions.fuse(b, 1);
+		STClass t = (STClass)a.GLOBALS.resolve("T");
+		assertEquals("0000:  push_local_0     \n0001:  push_int_1+send_add+return   \n",
+		             disassemble(t, t.resolveMethod("f:").compiledBlock));
+		assertEquals(Arrays.deepToString(a.instructionSet.getSuperinstructions().toArray()),
+		             Arrays.deepToString(ObjectFormat.load(ObjectFormat.BINARY.encode(t)).superinstructions));
+		assertEquals(0, new STSymbolTable().instructionSet.getSuperinstructions().size());
+	}
+
+	static long count(OpcodeStats stats, short... seq) {
+		List<Short> key = new ArrayList<>();
+		for (short op : seq) key.add(op);
+		return stats.counts.getOrDefault(key, 0L);
+	}
+
+	static void collect(STSymbolTable symtab, List<byte[]> code) {
+		for (org.antlr.symtab.Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				for (org.antlr.symtab.MethodSymbol m : ((STClass)s).getDefinedMethods()) {
+					collect(((smalltalk.compiler.symbols.STMethod)m).compiledBlock, code);
+				}
+			}
+		}
+	}
+
+	static void collect(STCompiledBlock blk, List<byte[]> code) {
+		code.add(blk.bytecode);
+		if ( blk.blocks!=null ) {
+			for (STCompiledBlock nested : blk.blocks) collect(nested, code);
+		}
+	}
+
+	static STSymbolTable compile(String input, boolean optimize) {
+		Compiler c = new Compiler();
+		c.shortForms = optimize;
+		c.specialSends = optimize;
+		c.optimizationLevel = optimize ? 1 : 0;
+		STSymbolTable symtab = c.compile("t.st", input);
+		assertEquals("[]", c.errors.toString());
+		return symtab;
+	}
+
+	static String disassemble(STClass t, STCompiledBlock blk) {
+		return Bytecode.disassemble(blk.name, blk.bytecode, t.stringTable.toArray(), 0, t.instructionSet);
+	}
+}
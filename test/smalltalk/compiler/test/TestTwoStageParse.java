@@ -0,0 +1,50 @@
+package smalltalk.compiler.test;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+import smalltalk.compiler.STC;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestTwoStageParse extends BaseTest {
+	@Test public void testImageParsesWithSLL() {
+		CompilerWithHooks c = new CompilerWithHooks();
+		assertNotNull(c.parseClasses(STC.loadCharStream("image.st")));
+		assertEquals(0, c.getParser().getNumberOfSyntaxErrors());
+	}
+
+	@Test public void testSameErrorsAsLL() {
+		String input =
+			"class T [\n" +
+			"    foo [ ^ ]\n" +
+			"    bar: [ x := ]\n" +
+			"]\n";
+		String ll = parseErrors(input, false);
+		assertEquals(ll, parseErrors(input, true));
+		assertEquals("line 2:12 mismatched input ']' expecting {'(', '{', 'self', 'super', 'nil', 'true', 'false', ID, CHAR, NUMBER, STRING, '['}\n" +
+		             "line 3:9 extraneous input '[' expecting ID\n" +
+		             "line 3:13 extraneous input ':=' expecting {'<', KEYWORD, '['}\n" +
+		             "line 4:0 extraneous input ']' expecting {<EOF>, 'class', '|', '(', '{', 'self', 'super', 'nil', 'true', 'false', ID, CHAR, NUMBER, STRING, '^', '['}\n",
+		             ll);
+	}
+
+	protected String parseErrors(String input, boolean twoStageParse) {
+		PrintStream save = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(errors));
+		try {
+			CompilerWithHooks c = new CompilerWithHooks();
+			c.twoStageParse = twoStageParse;
+			assertNull(c.parseClasses(CharStreams.fromString(input)));
+		}
+		finally {
+			System.setErr(save);
+		}
+		return errors.toString();
+	}
+}
@@ -0,0 +1,62 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestVariableAddresses {
+	@Test public void testNestedBlocks() {
+		String input =
+			"class T [\n" +
+			" |f|\n" +
+			" m: x [ |y| ^[:a | [:b | a + b + x + y + f + T] ] ]\n" +
+			"]\n";
+		String expecting =
+			"name: m:-block1\n" +
+			"qualifiedName: m:-block0>>m:-block1\n" +
+			"nargs: 1\n" +
+			"nlocals: 0\n" +
+			"0000:  push_local     1, 0\n" +
+			"0005:  push_local     0, 0\n" +
+			"0010:  send           1, '+'\n" +
+			"0015:  push_local     2, 0\n" +
+			"0020:  send           1, '+'\n" +
+			"0025:  push_local     2, 1\n" +
+			"0030:  send           1, '+'\n" +
+			"0035:  push_field     0\n" +
+			"0038:  send           1, '+'\n" +
+			"0043:  push_global    'T'\n" +
+			"0046:  send           1, '+'\n" +
+			"0051:  block_return     \n";
+		STClass t = compile(input, true);
+		assertEquals(expecting, t.resolveMethod("m:").compiledBlock.blocks[1].toTestString());
+		assertEquals(expecting, compile(input, false).resolveMethod("m:").compiledBlock.blocks[1].toTestString());
+	}
+
+	@Test public void testOperatorMethodArg() {
+		STClass t = compile("class T [ + other [ ^other ] ]\n", true);
+		byte[] bytes = t.resolveMethod("+").compiledBlock.bytecode;
+		assertEquals(Arrays.toString(new byte[] {Bytecode.PUSH_LOCAL, 0, 0, 0, 0}),
+		             Arrays.toString(Arrays.copyOf(bytes, 5)));
+	}
+
+	@Test public void testStoreToOuterBlockLocal() {
+		STClass t = compile("class T [ m [ [ |a| [ a := 1 ] ] ] ]\n", true);
+		byte[] bytes = t.resolveMethod("m").compiledBlock.blocks[1].bytecode;
+		assertEquals(Arrays.toString(new byte[] {Bytecode.PUSH_INT, 0, 0, 0, 1, Bytecode.STORE_LOCAL, 0, 1, 0, 0}),
+		             Arrays.toString(Arrays.copyOf(bytes, 10)));
+	}
+
+	protected STClass compile(String input, boolean fusePasses) {
+		Compiler c = new Compiler();
+		c.fusePasses = fusePasses;
+		STClass t = (STClass)c.compile("t.st", input).GLOBALS.resolve("T");
+		assertEquals("[]", c.errors.toString());
+		return t;
+	}
+}
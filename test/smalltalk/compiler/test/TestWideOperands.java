@@ -0,0 +1,53 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Code;
+import smalltalk.compiler.CodeEmitter;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestWideOperands {
+	@Test public void testManyLiteralsFieldsAndLocals() {
+		int n = 300;
+		StringBuilder buf = new StringBuilder("class T [\n |");
+		for (int i = 0; i < n; i++) buf.append(" f").append(i);
+		buf.append(" |\n m [ |");
+		for (int i = 0; i < n; i++) buf.append(" t").append(i);
+		buf.append(" |\n");
+		for (int i = 0; i < n; i++) {
+			buf.append("  t").append(i).append(" := 'lit").append(i).append("'.\n");
+			buf.append("  f").append(i).append(" := t").append(i).append(".\n");
+		}
+		buf.append("  ^100000\n ]\n]\n");
+		Compiler c = new Compiler();
+		STClass t = (STClass)c.compile("t.st", buf.toString()).GLOBALS.resolve("T");
+		assertEquals("[]", c.errors.toString());
+		String code = t.toTestString();
+		assertTrue(code.contains("push_literal   'lit299'\n"));
+		assertTrue(code.contains("store_local    0, 299\n"));
+		assertTrue(code.contains("push_local     0, 299\n"));
+		assertTrue(code.contains("store_field    299\n"));
+		assertTrue(code.contains("push_int       100000\n"));
+	}
+
+	@Test public void testWidePrefix() {
+		CodeEmitter code = new CodeEmitter();
+		code.emitShort(Bytecode.PUSH_FIELD, Code.MAX_SHORT_OPERAND);
+		code.emitShorts(Bytecode.PUSH_LOCAL, 1, Code.MAX_SHORT_OPERAND+1);
+		code.emit(Bytecode.POP);
+		String expecting =
+			"0000:  push_field     65535\n" +
+			"0003:  push_local_w   1, 65536\n" +
+			"0013:  pop              \n";
+		assertEquals(expecting, Bytecode.disassemble("m", code.bytes(), new String[0], 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeOperand() {
+		new CodeEmitter().emitShort(Bytecode.PUSH_FIELD, -1);
+	}
+}